@@ -0,0 +1,19 @@
+package tn.facturation.ttn.bench;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Les services journalisent chaque facture: hors Spring, logback est en DEBUG sur
+ * la console et la mesure deviendrait celle des logs.
+ */
+public final class BenchLogging {
+
+    private BenchLogging() {
+    }
+
+    public static void quiet() {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.ERROR);
+    }
+}
@@ -0,0 +1,430 @@
+package tn.facturation.ttn.bench;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Faux EfactService TTN pour les tests de charge (saveEfact / consultEfact).
+ *
+ * Même contrat SOAP que elfatoora.tn: saveEfact mémorise la facture et retourne un
+ * idSaveEfact, consultEfact retourne en Base64 la facture complétée d'un bloc
+ * RefTtnVal (ReferenceTTN + ReferenceCEV, image QR PNG). Latence, taux d'erreurs
+ * HTTP, SOAP Faults et délai de production de la copie sont configurables.
+ *
+ * Embarqué: {@code try (FakeTtnServer ttn = FakeTtnServer.start(settings)) { ... }}.
+ * Autonome: mvn -Pbench test-compile exec:exec -Dbench.main=tn.facturation.ttn.bench.FakeTtnServer
+ * -Dbench.args="port=8089 latency=LOGNORMAL latency-ms=150 error-rate=0.02"
+ */
+@Slf4j
+public final class FakeTtnServer implements AutoCloseable {
+
+    public static final String PATH = "/ElfatouraServices/EfactService";
+
+    private static final XMLInputFactory XML = XMLInputFactory.newFactory();
+    private static final Pattern SIGNATURE_START = Pattern.compile("<([A-Za-z_][\\w.-]*:)?Signature[\\s>]");
+    private static final DateTimeFormatter REF_DATE = DateTimeFormatter.ofPattern("ddMMyyHHmm");
+
+    public enum Distribution {
+        FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL
+    }
+
+    @Data
+    public static class Settings {
+        private int port = 0;
+        private int threads = 200;
+        // Latence de chaque réponse
+        private Distribution latency = Distribution.LOGNORMAL;
+        private long latencyMs = 100;
+        // UNIFORM: ± spread; LOGNORMAL: sigma = écart-type du logarithme
+        private long latencySpreadMs = 50;
+        private double latencySigma = 0.5;
+        // Proportion de réponses HTTP en erreur, code tiré dans errorCodes
+        private double errorRate = 0.0;
+        private int[] errorCodes = {500, 503, 429};
+        // Proportion de rejets métier (SOAP Fault en HTTP 200)
+        private double faultRate = 0.0;
+        // Délai avant que consultEfact trouve la copie signée par TTN
+        private long copyDelayMs = 0;
+    }
+
+    /** Compteurs côté serveur, pour recouper les mesures du client. */
+    @Data
+    public static class Stats {
+        private long saveEfact;
+        private long consultEfact;
+        private long consultNotReady;
+        private long httpErrors;
+        private long faults;
+        private int stored;
+    }
+
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, StoredEfact> byDocumentNumber = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+    private final String cevImage;
+
+    private final LongAdder saveCount = new LongAdder();
+    private final LongAdder consultCount = new LongAdder();
+    private final LongAdder notReadyCount = new LongAdder();
+    private final LongAdder httpErrorCount = new LongAdder();
+    private final LongAdder faultCount = new LongAdder();
+
+    private FakeTtnServer(Settings settings) throws IOException {
+        this.settings = settings;
+        this.cevImage = qrImage("TTN-CEV-FAKE");
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(settings.getThreads(), r -> {
+            Thread thread = new Thread(r, "fake-ttn-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", settings.getPort()), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext(PATH, this::handle);
+    }
+
+    public static FakeTtnServer start(Settings settings) throws IOException {
+        FakeTtnServer fake = new FakeTtnServer(settings);
+        fake.server.start();
+        log.info("Faux TTN démarré: {}", fake.endpoint());
+        return fake;
+    }
+
+    public String endpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    public String wsdlUrl() {
+        return endpoint() + "?wsdl";
+    }
+
+    public Stats stats() {
+        Stats stats = new Stats();
+        stats.setSaveEfact(saveCount.sum());
+        stats.setConsultEfact(consultCount.sum());
+        stats.setConsultNotReady(notReadyCount.sum());
+        stats.setHttpErrors(httpErrorCount.sum());
+        stats.setFaults(faultCount.sum());
+        stats.setStored(byDocumentNumber.size());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 200, "<definitions name=\"EfactService\"/>");
+                return;
+            }
+
+            SoapRequest request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = SoapRequest.read(in);
+            } catch (XMLStreamException e) {
+                respond(exchange, 400, fault("Requête SOAP invalide: " + e.getMessage()));
+                return;
+            }
+
+            sleep(nextLatency());
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < settings.getErrorRate()) {
+                httpErrorCount.increment();
+                int[] codes = settings.getErrorCodes();
+                respond(exchange, codes[random.nextInt(codes.length)], "Erreur simulée");
+                return;
+            }
+            if (random.nextDouble() < settings.getFaultRate()) {
+                faultCount.increment();
+                respond(exchange, 200, fault("Facture rejetée (simulation)"));
+                return;
+            }
+
+            switch (request.operation) {
+                case "saveEfact" -> respond(exchange, 200, saveEfact(request));
+                case "consultEfact" -> respond(exchange, 200, consultEfact(request));
+                default -> respond(exchange, 500, fault("Opération inconnue: " + request.operation));
+            }
+        }
+    }
+
+    private String saveEfact(SoapRequest request) {
+        saveCount.increment();
+        if (request.document == null) {
+            return fault("documentEfact manquant");
+        }
+
+        String id = "TTN" + nextId.incrementAndGet();
+        String xml = new String(request.document, StandardCharsets.UTF_8);
+        String documentNumber = textOf(xml, "DocumentIdentifier");
+        if (documentNumber == null) {
+            documentNumber = id;
+        }
+        byDocumentNumber.put(documentNumber, new StoredEfact(documentNumber, id, request.document,
+                System.currentTimeMillis() + settings.getCopyDelayMs(), LocalDate.now()));
+
+        return envelope("<ns2:saveEfactResponse xmlns:ns2=\"http://services.elfatoura.tradenet.com.tn/\"><return>"
+                + "<status>Facture enregistrée avec succès</status>"
+                + "<idSaveEfact>" + id + "</idSaveEfact>"
+                + "</return></ns2:saveEfactResponse>");
+    }
+
+    private String consultEfact(SoapRequest request) {
+        consultCount.increment();
+        long now = System.currentTimeMillis();
+        List<StoredEfact> results = new ArrayList<>();
+
+        String documentNumber = request.criteria.get("documentNumber");
+        if (documentNumber != null) {
+            StoredEfact stored = byDocumentNumber.get(documentNumber);
+            if (stored != null && stored.readyAt <= now) {
+                results.add(stored);
+            } else {
+                notReadyCount.increment();
+            }
+        } else {
+            LocalDate from = date(request.criteria.get("dateFrom"), LocalDate.MIN);
+            LocalDate to = date(request.criteria.get("dateTo"), LocalDate.MAX);
+            int page = Math.max(1, number(request.criteria.get("pageNumber"), 1));
+            int pageSize = Math.max(1, number(request.criteria.get("pageSize"), 100));
+            byDocumentNumber.values().stream()
+                    .filter(e -> e.readyAt <= now && !e.day.isBefore(from) && !e.day.isAfter(to))
+                    .sorted(Comparator.comparing(e -> e.id))
+                    .skip((long) (page - 1) * pageSize)
+                    .limit(pageSize)
+                    .forEach(results::add);
+        }
+
+        StringBuilder body = new StringBuilder(
+                "<ns2:consultEfactResponse xmlns:ns2=\"http://services.elfatoura.tradenet.com.tn/\"><return>");
+        for (StoredEfact stored : results) {
+            body.append("<efact><documentNumber>").append(stored.documentNumber).append("</documentNumber>")
+                    .append("<idSaveEfact>").append(stored.id).append("</idSaveEfact>")
+                    .append("<xmlContent>").append(Base64.getEncoder().encodeToString(withTtnValidation(stored)))
+                    .append("</xmlContent></efact>");
+        }
+        body.append("</return></ns2:consultEfactResponse>");
+        return envelope(body.toString());
+    }
+
+    /**
+     * Ajoute à la facture le bloc que TTN insère à la validation: RefTtnVal se place
+     * avant ds:Signature (séquence du schéma TEIF), sinon avant la fin de l'élément racine.
+     */
+    private byte[] withTtnValidation(StoredEfact stored) {
+        String xml = new String(stored.document, StandardCharsets.UTF_8);
+        String refTtnVal = "<RefTtnVal><ReferenceTTN refID=\"I-88\">" + stored.id + "</ReferenceTTN>"
+                + "<ReferenceCEV>" + cevImage + "</ReferenceCEV>"
+                + "<ReferenceDate><DateText format=\"ddMMyyHHmm\" functionCode=\"I-37\">"
+                + LocalDateTime.now().format(REF_DATE) + "</DateText></ReferenceDate></RefTtnVal>";
+        Matcher signature = SIGNATURE_START.matcher(xml);
+        int insertAt = signature.find() ? signature.start() : xml.lastIndexOf("</");
+        String validated = insertAt > 0 ? xml.substring(0, insertAt) + refTtnVal + xml.substring(insertAt) : xml;
+        return validated.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long nextLatency() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double mean = settings.getLatencyMs();
+        double value = switch (settings.getLatency()) {
+            case FIXED -> mean;
+            case UNIFORM -> mean + (random.nextDouble() * 2 - 1) * settings.getLatencySpreadMs();
+            case EXPONENTIAL -> -mean * Math.log(1 - random.nextDouble());
+            case LOGNORMAL -> mean * Math.exp(settings.getLatencySigma() * random.nextGaussian());
+        };
+        return Math.max(0, Math.round(value));
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String envelope(String body) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>"
+                + body + "</S:Body></S:Envelope>";
+    }
+
+    private static String fault(String message) {
+        return envelope("<S:Fault><faultcode>S:Server</faultcode><faultstring>" + message
+                + "</faultstring></S:Fault>");
+    }
+
+    private static String textOf(String xml, String element) {
+        int start = xml.indexOf("<" + element + ">");
+        if (start < 0) {
+            return null;
+        }
+        start += element.length() + 2;
+        int end = xml.indexOf("</" + element + ">", start);
+        return end > start ? xml.substring(start, end).trim() : null;
+    }
+
+    private static LocalDate date(String value, LocalDate fallback) {
+        return value != null ? LocalDate.parse(value) : fallback;
+    }
+
+    private static int number(String value, int fallback) {
+        return value != null ? Integer.parseInt(value) : fallback;
+    }
+
+    private static String qrImage(String content) throws IOException {
+        try {
+            BitMatrix matrix = new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, 150, 150);
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            MatrixToImageWriter.writeToStream(matrix, "PNG", png);
+            return Base64.getEncoder().encodeToString(png.toByteArray());
+        } catch (Exception e) {
+            throw new IOException("Image CEV: " + e.getMessage(), e);
+        }
+    }
+
+    private record StoredEfact(String documentNumber, String id, byte[] document, long readyAt, LocalDate day) {
+    }
+
+    /** Champs utiles d'une requête saveEfact / consultEfact. */
+    private static final class SoapRequest {
+
+        private String operation = "";
+        private byte[] document;
+        private final Map<String, String> criteria = new HashMap<>();
+
+        static SoapRequest read(InputStream in) throws XMLStreamException {
+            SoapRequest request = new SoapRequest();
+            XMLStreamReader reader = XML.createXMLStreamReader(in);
+            boolean inBody = false;
+            boolean inCriteria = false;
+            StringBuilder text = new StringBuilder();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    text.setLength(0);
+                    if (inBody && request.operation.isEmpty()) {
+                        request.operation = name;
+                    }
+                    inBody |= "Body".equals(name);
+                    inCriteria |= "efactCriteria".equals(name);
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    text.append(reader.getText());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("documentEfact".equals(name)) {
+                        request.document = Base64.getMimeDecoder().decode(text.toString().trim());
+                    } else if ("efactCriteria".equals(name)) {
+                        inCriteria = false;
+                    } else if (inCriteria) {
+                        request.criteria.put(name, text.toString().trim());
+                    }
+                    text.setLength(0);
+                }
+            }
+            reader.close();
+            return request;
+        }
+    }
+
+    /**
+     * Lancement autonome: arguments clé=valeur (port, threads, latency, latency-ms,
+     * latency-spread-ms, latency-sigma, error-rate, error-codes, fault-rate, copy-delay-ms).
+     */
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings();
+        settings.setPort(8089);
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length == 2 && !configure(settings, pair[0], pair[1])) {
+                log.warn("Paramètre inconnu: {}", pair[0]);
+            }
+        }
+
+        FakeTtnServer server = start(settings);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        log.info("app.ttn.endpoint={} app.ttn.wsdl-url={} ({})", server.endpoint(), server.wsdlUrl(), settings);
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Applique un paramètre de ligne de commande (latency-ms=150, error-rate=0.02...).
+     *
+     * @return false si le paramètre n'existe pas
+     */
+    static boolean configure(Settings settings, String key, String value) {
+        switch (key) {
+            case "port" -> settings.setPort(Integer.parseInt(value));
+            case "threads" -> settings.setThreads(Integer.parseInt(value));
+            case "latency" -> settings.setLatency(Distribution.valueOf(value.toUpperCase()));
+            case "latency-ms" -> settings.setLatencyMs(Long.parseLong(value));
+            case "latency-spread-ms" -> settings.setLatencySpreadMs(Long.parseLong(value));
+            case "latency-sigma" -> settings.setLatencySigma(Double.parseDouble(value));
+            case "error-rate" -> settings.setErrorRate(Double.parseDouble(value));
+            case "error-codes" -> settings.setErrorCodes(
+                    Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray());
+            case "fault-rate" -> settings.setFaultRate(Double.parseDouble(value));
+            case "copy-delay-ms" -> settings.setCopyDelayMs(Long.parseLong(value));
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+}
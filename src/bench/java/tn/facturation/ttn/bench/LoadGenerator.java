@@ -0,0 +1,469 @@
+package tn.facturation.ttn.bench;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import tn.facturation.ttn.TtnServiceApplication;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Test de charge de bout en bout: factures TEIF synthétiques déposées dans
+ * app.folders.input à débit fixe, traitées par l'application complète (watcher,
+ * validation, signature XAdES, saveEfact, consultEfact, QR) face à un
+ * {@link FakeTtnServer} embarqué.
+ *
+ * Chaque configuration démarre un contexte Spring neuf sur des dossiers
+ * temporaires. Une facture est terminée quand son fichier quitte le dossier
+ * d'entrée (supprimé après succès, déplacé vers erreurs après échec); sa latence
+ * part de l'instant de dépôt prévu, pas de l'instant effectif, pour ne pas masquer
+ * un générateur en retard. Rapport par configuration: débit, latences p50/p90/p99,
+ * pic de heap, GC.
+ *
+ * mvn -Pbench test-compile exec:exec -Dbench.main=tn.facturation.ttn.bench.LoadGenerator
+ * -Dbench.args="invoices=2000 rate=100 lines=20 ttn.latency-ms=150
+ * configs=app.pipeline.sign.workers=1;app.pipeline.sign.workers=4,app.pipeline.send.workers=8"
+ *
+ * Paramètres: invoices, warmup, rate (factures/s, 0 = toutes d'un coup), lines,
+ * min-kb, signer (xades | none), stable-files, timeout-s, keep (conserve les
+ * dossiers), configs (configurations séparées par ';', propriétés par ','),
+ * ttn.* (voir {@link FakeTtnServer}), et toute propriété app.* / logging.* / spring.*
+ * / bench.* (ex: bench.tokens, nombre de clés logicielles du pool de signature)
+ * commune à toutes les configurations.
+ */
+@Slf4j
+public final class LoadGenerator {
+
+    // Délai de stabilité du pipeline: un fichier plus ancien est traité sans attendre
+    private static final long STABLE_AGE_MS = 2000;
+    private static final long SAMPLE_MS = 20;
+
+    @Data
+    public static class Settings {
+        private int invoices = 500;
+        private int warmup = 20;
+        private double rate = 50;
+        private int lines = 10;
+        private int minKb = 0;
+        private String signer = "xades";
+        // Fichiers déposés déjà complets (copie atomique de l'ERP): pas d'attente de stabilité
+        private boolean stableFiles = true;
+        private long timeoutSeconds = 600;
+        private boolean keep = false;
+        private List<String> configurations = List.of("");
+        private Map<String, String> properties = new LinkedHashMap<>();
+        private FakeTtnServer.Settings ttn = new FakeTtnServer.Settings();
+    }
+
+    public record Result(String configuration, int submitted, long succeeded, long failed, int lost,
+                         double seconds, long p50Ms, long p90Ms, long p99Ms, long maxMs,
+                         long heapPeakMb, long heapAfterMb, long gcCount, long gcMs,
+                         FakeTtnServer.Stats ttn) {
+
+        public double throughput() {
+            return seconds > 0 ? (succeeded + failed) / seconds : 0;
+        }
+    }
+
+    private final Settings settings;
+    private final TeifInvoiceGenerator generator;
+
+    public LoadGenerator(Settings settings) {
+        this.settings = settings;
+        this.generator = new TeifInvoiceGenerator(settings.getLines(), settings.getMinKb() * 1024, 42);
+    }
+
+    public List<Result> runAll() throws Exception {
+        List<Result> results = new ArrayList<>();
+        int index = 0;
+        for (String configuration : settings.getConfigurations()) {
+            results.add(run(++index, configuration));
+        }
+        return results;
+    }
+
+    /**
+     * Une configuration: contexte Spring neuf, échauffement, puis mesure.
+     */
+    public Result run(int index, String configuration) throws Exception {
+        Path base = Files.createTempDirectory("ttn-load-");
+        Path input = base.resolve("entree");
+        Path staging = Files.createDirectories(base.resolve("depot"));
+        Map<String, String> properties = properties(base, configuration);
+
+        log.info("Configuration {}: {}", index, configuration.isEmpty() ? "(défaut)" : configuration);
+        try (FakeTtnServer ttn = FakeTtnServer.start(settings.getTtn())) {
+            properties.put("app.ttn.endpoint", ttn.endpoint());
+            properties.put("app.ttn.wsdl-url", ttn.wsdlUrl());
+
+            try (ConfigurableApplicationContext context = start(properties);
+                 Completions completions = new Completions(input)) {
+                MeterRegistry registry = context.getBean(MeterRegistry.class);
+
+                if (settings.getWarmup() > 0) {
+                    drop(staging, input, completions, "W" + index, settings.getWarmup(), settings.getRate());
+                    completions.await(settings.getTimeoutSeconds());
+                    log.info("Échauffement terminé ({} factures)", settings.getWarmup());
+                }
+
+                System.gc();
+                completions.reset();
+                double successBefore = registry.counter("factures.processed.success").count();
+                double failureBefore = registry.counter("factures.processed.failure").count();
+                long[] gcBefore = gc();
+
+                try (HeapSampler heap = new HeapSampler()) {
+                    long start = System.nanoTime();
+                    drop(staging, input, completions, "L" + index, settings.getInvoices(), settings.getRate());
+                    boolean finished = completions.await(settings.getTimeoutSeconds());
+                    long end = completions.lastCompletion() > start ? completions.lastCompletion() : System.nanoTime();
+                    double seconds = (end - start) / 1e9;
+                    if (!finished) {
+                        log.warn("Délai dépassé: {} facture(s) non terminée(s)", completions.pending());
+                    }
+
+                    long[] gcAfter = gc();
+                    long[] latencies = completions.latencies();
+                    System.gc();
+                    return new Result(configuration, settings.getInvoices(),
+                            Math.round(registry.counter("factures.processed.success").count() - successBefore),
+                            Math.round(registry.counter("factures.processed.failure").count() - failureBefore),
+                            completions.pending(), seconds,
+                            percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                            latencies.length > 0 ? latencies[latencies.length - 1] : 0,
+                            heap.peak() >> 20, heapUsed() >> 20,
+                            gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], ttn.stats());
+                }
+            }
+        } finally {
+            if (!settings.isKeep()) {
+                deleteRecursively(base);
+            } else {
+                log.info("Dossiers conservés: {}", base);
+            }
+        }
+    }
+
+    private Map<String, String> properties(Path base, String configuration) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("spring.main.web-application-type", "none");
+        properties.put("spring.main.banner-mode", "off");
+        properties.put("logging.level.tn.facturation.ttn", "WARN");
+        properties.put("logging.level.eu.europa.esig.dss", "WARN");
+        // Pas de token dans un test de charge: erreurs d'initialisation attendues
+        properties.put("logging.level.tn.facturation.ttn.service.Pkcs11XmlSignatureService", "OFF");
+        properties.put("app.folders.input", base.resolve("entree").toString());
+        properties.put("app.folders.output", base.resolve("sortie").toString());
+        properties.put("app.folders.ttn-signed", base.resolve("signeTTN").toString());
+        properties.put("app.folders.qrcode", base.resolve("qrcode").toString());
+        properties.put("app.folders.errors", base.resolve("erreurs").toString());
+        properties.put("app.folders.archive", base.resolve("archives").toString());
+        properties.put("app.journal.file", base.resolve("journal").resolve("factures.journal").toString());
+        properties.put("app.ttn.enabled", "true");
+        // Le faux TTN produit sa copie en copy-delay-ms: consultations rapprochées
+        properties.put("app.ttn.consult-polling.initial-delay-ms", "200");
+        properties.put("app.ttn.consult-polling.tick-ms", "50");
+        properties.put("bench.signer", settings.getSigner());
+        properties.putAll(settings.getProperties());
+        for (String property : configuration.split(",")) {
+            String[] pair = property.trim().split("=", 2);
+            if (pair.length == 2) {
+                properties.put(pair[0], pair[1]);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Démarre l'application avec {@link SoftwareKeySigner} comme signataire principal
+     * (le service PKCS#11 reste déclaré mais n'est plus injecté).
+     */
+    private static ConfigurableApplicationContext start(Map<String, String> properties) {
+        String[] args = properties.entrySet().stream()
+                .map(entry -> "--" + entry.getKey() + "=" + entry.getValue())
+                .toArray(String[]::new);
+        ApplicationContextInitializer<GenericApplicationContext> signer =
+                context -> context.registerBean("softwareKeySigner", SoftwareKeySigner.class,
+                        definition -> definition.setPrimary(true));
+        return new SpringApplicationBuilder(TtnServiceApplication.class)
+                .initializers(signer)
+                .run(args);
+    }
+
+    /**
+     * Dépose {@code count} factures à {@code rate} par seconde (écriture dans un dossier
+     * voisin puis déplacement atomique: le watcher ne voit jamais de fichier partiel).
+     */
+    private void drop(Path staging, Path input, Completions completions, String prefix, int count, double rate)
+            throws IOException {
+        long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            String number = String.format("%s-%06d", prefix, i + 1);
+            Path staged = staging.resolve(number + ".xml");
+            Files.write(staged, generator.generate(number));
+            if (settings.isStableFiles()) {
+                Files.setLastModifiedTime(staged,
+                        FileTime.fromMillis(System.currentTimeMillis() - STABLE_AGE_MS));
+            }
+            completions.expect(number + ".xml", interval > 0 ? due : System.nanoTime());
+            Files.move(staged, input.resolve(number + ".xml"), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+    private static long[] gc() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void deleteRecursively(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            log.warn("Nettoyage de {} incomplet: {}", root, e.getMessage());
+        }
+    }
+
+    /**
+     * Fin de traitement des factures déposées: suppression (succès) ou déplacement
+     * vers erreurs (échec) du fichier d'entrée, observés par un WatchService.
+     */
+    private static final class Completions implements AutoCloseable {
+
+        private final Path input;
+        private final WatchService watchService;
+        private final Thread thread;
+        private final Map<String, Long> expected = new ConcurrentHashMap<>();
+        private final List<Long> latencies = new ArrayList<>();
+        private final AtomicLong lastCompletion = new AtomicLong();
+        private volatile CountDownLatch idle = new CountDownLatch(0);
+
+        private Completions(Path input) throws IOException {
+            this.input = Files.createDirectories(input);
+            this.watchService = FileSystems.getDefault().newWatchService();
+            input.register(watchService, StandardWatchEventKinds.ENTRY_DELETE);
+            this.thread = new Thread(this::watch, "load-completions");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        synchronized void expect(String fileName, long dueNanos) {
+            if (expected.isEmpty()) {
+                idle = new CountDownLatch(1);
+            }
+            expected.put(fileName, dueNanos);
+        }
+
+        synchronized void reset() {
+            latencies.clear();
+        }
+
+        boolean await(long timeoutSeconds) throws InterruptedException {
+            return idle.await(timeoutSeconds, TimeUnit.SECONDS);
+        }
+
+        int pending() {
+            return expected.size();
+        }
+
+        long lastCompletion() {
+            return lastCompletion.get();
+        }
+
+        synchronized long[] latencies() {
+            long[] values = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(values);
+            return values;
+        }
+
+        private void watch() {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    long now = System.nanoTime();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan(now);
+                        } else {
+                            completed(event.context().toString(), now);
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Arrêt
+            }
+        }
+
+        private void rescan(long now) {
+            for (String fileName : expected.keySet()) {
+                if (!Files.exists(input.resolve(fileName))) {
+                    completed(fileName, now);
+                }
+            }
+        }
+
+        private synchronized void completed(String fileName, long now) {
+            Long due = expected.remove(fileName);
+            if (due == null) {
+                return;
+            }
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(now - due));
+            lastCompletion.set(now);
+            if (expected.isEmpty()) {
+                idle.countDown();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            watchService.close();
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Pic de heap utilisé, échantillonné toutes les {@value #SAMPLE_MS} ms.
+     */
+    private static final class HeapSampler implements AutoCloseable {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-heap-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicLong peak = new AtomicLong();
+
+        private HeapSampler() {
+            sampler.scheduleAtFixedRate(() -> peak.accumulateAndGet(
+                    memory.getHeapMemoryUsage().getUsed(), Math::max), 0, SAMPLE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        long peak() {
+            return peak.get();
+        }
+
+        @Override
+        public void close() {
+            sampler.shutdownNow();
+        }
+    }
+
+    private static void report(Settings settings, List<Result> results) {
+        System.out.printf("%n%d facture(s) par configuration, %s/s, %d ligne(s), signature %s, TTN %s %d ms%n",
+                settings.getInvoices(), settings.getRate() > 0 ? settings.getRate() : "∞", settings.getLines(),
+                settings.getSigner(), settings.getTtn().getLatency(), settings.getTtn().getLatencyMs());
+        System.out.printf("%-3s %7s %7s %5s %9s %7s %7s %7s %7s %9s %9s %5s %7s  %s%n",
+                "#", "ok", "échecs", "perdu", "fact/s", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "heap max", "heap fin", "GC", "GC ms", "configuration");
+        int index = 0;
+        for (Result result : results) {
+            System.out.printf("%-3d %7d %7d %5d %9.1f %7d %7d %7d %7d %7d Mo %6d Mo %5d %7d  %s%n",
+                    ++index, result.succeeded(), result.failed(), result.lost(), result.throughput(),
+                    result.p50Ms(), result.p90Ms(), result.p99Ms(), result.maxMs(),
+                    result.heapPeakMb(), result.heapAfterMb(), result.gcCount(), result.gcMs(),
+                    result.configuration().isEmpty() ? "(défaut)" : result.configuration());
+        }
+        for (int i = 0; i < results.size(); i++) {
+            FakeTtnServer.Stats ttn = results.get(i).ttn();
+            System.out.printf("TTN #%d: saveEfact=%d consultEfact=%d (copie pas prête %d) erreurs HTTP=%d faults=%d%n",
+                    i + 1, ttn.getSaveEfact(), ttn.getConsultEfact(), ttn.getConsultNotReady(),
+                    ttn.getHttpErrors(), ttn.getFaults());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                continue;
+            }
+            String key = pair[0];
+            String value = pair[1];
+            switch (key) {
+                case "invoices" -> settings.setInvoices(Integer.parseInt(value));
+                case "warmup" -> settings.setWarmup(Integer.parseInt(value));
+                case "rate" -> settings.setRate(Double.parseDouble(value));
+                case "lines" -> settings.setLines(Integer.parseInt(value));
+                case "min-kb" -> settings.setMinKb(Integer.parseInt(value));
+                case "signer" -> settings.setSigner(value);
+                case "stable-files" -> settings.setStableFiles(Boolean.parseBoolean(value));
+                case "timeout-s" -> settings.setTimeoutSeconds(Long.parseLong(value));
+                case "keep" -> settings.setKeep(Boolean.parseBoolean(value));
+                case "configs" -> settings.setConfigurations(Arrays.asList(value.split(";")));
+                default -> {
+                    if (key.startsWith("ttn.")) {
+                        if (!FakeTtnServer.configure(settings.getTtn(), key.substring(4), value)) {
+                            log.warn("Paramètre TTN inconnu: {}", key);
+                        }
+                    } else if (key.startsWith("app.") || key.startsWith("logging.") || key.startsWith("spring.")
+                            || key.startsWith("bench.")) {
+                        settings.getProperties().put(key, value);
+                    } else {
+                        log.warn("Paramètre inconnu: {}", key);
+                    }
+                }
+            }
+        }
+
+        List<Result> results = new LoadGenerator(settings).runAll();
+        report(settings, results);
+        System.exit(0);
+    }
+}
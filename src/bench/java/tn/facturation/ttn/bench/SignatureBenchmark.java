@@ -0,0 +1,152 @@
+package tn.facturation.ttn.bench;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.StandardEnvironment;
+import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.service.XmlSignatureService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Étape sign, sans token SafeNet:
+ * <ul>
+ *   <li>XmlSignatureService.signXmlFile sans certificat (signature MOCK) et avec un
+ *   magasin PKCS12 (XMLDSig Santuario + propriétés XAdES construites à la main);</li>
+ *   <li>XAdES BASELINE_B par DSS avec une clé logicielle: mêmes paramètres que
+ *   Pkcs11XmlSignatureService (pool de signature compris), la seule différence
+ *   étant l'opération RSA faite en mémoire au lieu du token;</li>
+ *   <li>le même débit en signatures/s avec 4 threads sur un seul token: l'opération
+ *   RSA est sérialisée, le reste (paramètres, DOM, empreintes) doit passer en
+ *   parallèle.</li>
+ *   <li>le débit du magasin PKCS12 avec 4 threads: rien n'y est sérialisé, la
+ *   signature logicielle suit le nombre de cœurs.</li>
+ * </ul>
+ *
+ * mvn -Pbench test-compile exec:exec -Djmh.args="SignatureBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    private static final String PASSWORD = "bench";
+
+    @Param({"10", "200"})
+    private int lines;
+
+    private Path workDir;
+    private byte[] content;
+    private File input;
+    private File output;
+
+    private XmlSignatureService mockSigner;
+    private XmlSignatureService keystoreSigner;
+    private SoftwareKeySigner xadesSigner;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchLogging.quiet();
+        workDir = Files.createTempDirectory("ttn-sign-bench-");
+        content = new TeifInvoiceGenerator(lines, 0, 42).generate("FAC-2024-000123");
+        input = Files.write(workDir.resolve("FAC-2024-000123.xml"), content).toFile();
+        output = workDir.resolve("FAC-2024-000123_signed.xml").toFile();
+
+        mockSigner = new XmlSignatureService(new AppProperties());
+
+        Path keyStore = Files.write(workDir.resolve("bench.p12"),
+                SoftwareKeySigner.selfSignedKeyStore("PKCS12", PASSWORD.toCharArray()));
+        AppProperties withKeyStore = new AppProperties();
+        withKeyStore.getCertificate().setPath(keyStore.toString());
+        withKeyStore.getCertificate().setPassword(PASSWORD);
+        keystoreSigner = new XmlSignatureService(withKeyStore);
+
+        xadesSigner = new SoftwareKeySigner(new AppProperties(), new SimpleMeterRegistry(), new StandardEnvironment());
+        xadesSigner.init();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        xadesSigner.cleanup();
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean xmlDsigMock() {
+        return mockSigner.signXmlFile(input, output);
+    }
+
+    @Benchmark
+    public boolean xmlDsigKeyStore() {
+        return keystoreSigner.signXmlFile(input, output);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public boolean xmlDsigKeyStoreThroughput(ThreadOutput thread) {
+        return keystoreSigner.signXmlFile(input, thread.output);
+    }
+
+    @Benchmark
+    public boolean xadesSoftwareKey() throws IOException {
+        return write(xadesSigner.signXml(content, input.getName()), output);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public boolean xadesSoftwareKeyThroughput(ThreadOutput thread) throws IOException {
+        return write(xadesSigner.signXml(content, input.getName()), thread.output);
+    }
+
+    /**
+     * Écriture du XML signé, comme le fait SignedFileWriter dans le pipeline.
+     */
+    private static boolean write(byte[] signed, File output) throws IOException {
+        if (signed == null) {
+            return false;
+        }
+        Files.write(output.toPath(), signed);
+        return true;
+    }
+
+    /**
+     * Fichier signé propre à chaque thread du test de débit.
+     */
+    @State(Scope.Thread)
+    public static class ThreadOutput {
+
+        private File output;
+
+        @Setup
+        public void setup(SignatureBenchmark benchmark) {
+            output = benchmark.workDir.resolve("signed-" + Thread.currentThread().getId() + ".xml").toFile();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package tn.facturation.ttn.bench;
+
+import jakarta.xml.soap.MessageFactory;
+import jakarta.xml.soap.SOAPBody;
+import jakarta.xml.soap.SOAPElement;
+import jakarta.xml.soap.SOAPEnvelope;
+import jakarta.xml.soap.SOAPMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tn.facturation.ttn.service.SoapEnvelopeTemplates;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction d'une requête consultEfact: SAAJ (ancienne méthode, avec et sans
+ * MessageFactory en cache) contre enveloppe précalculée.
+ *
+ * mvn -Pbench test-compile exec:exec -Djmh.args="SoapEnvelopeBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SoapEnvelopeBenchmark {
+
+    private static final String NAMESPACE_URI = SoapEnvelopeTemplates.NAMESPACE_URI;
+    private static final String LOGIN = "mon_login_ttn";
+    private static final String PASSWORD = "mon_password_ttn";
+    private static final String MATRICULE = "1234567ABC000";
+    private static final String INVOICE_NUMBER = "FAC-2024-000123";
+
+    private MessageFactory cachedFactory;
+    private SoapEnvelopeTemplates templates;
+
+    @Setup
+    public void setup() throws Exception {
+        cachedFactory = MessageFactory.newInstance();
+        templates = new SoapEnvelopeTemplates(LOGIN, PASSWORD, MATRICULE);
+    }
+
+    @Benchmark
+    public byte[] saaj() throws Exception {
+        return saajConsultEfact(MessageFactory.newInstance());
+    }
+
+    @Benchmark
+    public byte[] saajCachedFactory() throws Exception {
+        return saajConsultEfact(cachedFactory);
+    }
+
+    @Benchmark
+    public byte[] template() {
+        return templates.consultEfact(Map.of("documentNumber", INVOICE_NUMBER));
+    }
+
+    private static byte[] saajConsultEfact(MessageFactory factory) throws Exception {
+        SOAPMessage message = factory.createMessage();
+        SOAPEnvelope envelope = message.getSOAPPart().getEnvelope();
+        envelope.addNamespaceDeclaration("ser", NAMESPACE_URI);
+
+        SOAPBody body = envelope.getBody();
+        SOAPElement consultEfact = body.addChildElement("consultEfact", "ser");
+        consultEfact.addChildElement("login").addTextNode(LOGIN);
+        consultEfact.addChildElement("password").addTextNode(PASSWORD);
+        consultEfact.addChildElement("matricule").addTextNode(MATRICULE);
+        consultEfact.addChildElement("efactCriteria")
+                .addChildElement("documentNumber").addTextNode(INVOICE_NUMBER);
+        message.saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+}
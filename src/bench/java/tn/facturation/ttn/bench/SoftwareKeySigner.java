@@ -0,0 +1,155 @@
+package tn.facturation.ttn.bench;
+
+import eu.europa.esig.dss.model.DSSDocument;
+import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.token.KeyStoreSignatureTokenConnection;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.springframework.core.env.Environment;
+import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.service.Pkcs11XmlSignatureService;
+import tn.facturation.ttn.service.SigningToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Signataire de remplacement pour les tests de charge, sans token SafeNet.
+ *
+ * Déclaré comme bean principal devant Pkcs11XmlSignatureService, il ouvre
+ * bench.tokens sessions (1 par défaut) à clé RSA logicielle auto-signée dans le
+ * pool de signature: mêmes paramètres XAdES (BASELINE_B, enveloppée, SHA-256),
+ * même répartition entre tokens, seule l'opération RSA est faite en mémoire.
+ * bench.signer=none recopie le document sans le signer, pour mesurer le pipeline
+ * hors cryptographie.
+ */
+@Slf4j
+public class SoftwareKeySigner extends Pkcs11XmlSignatureService {
+
+    public static final String ALIAS = "bench";
+
+    public enum Mode {
+        XADES, NONE
+    }
+
+    private final Mode mode;
+    private final int tokenCount;
+
+    public SoftwareKeySigner(AppProperties config, MeterRegistry meterRegistry, Environment environment) {
+        super(config, meterRegistry);
+        this.mode = Mode.valueOf(environment.getProperty("bench.signer", "xades").toUpperCase(Locale.ROOT));
+        this.tokenCount = Math.max(1, environment.getProperty("bench.tokens", Integer.class, 1));
+    }
+
+    @Override
+    public void init() {
+        if (mode == Mode.NONE) {
+            log.info("Signature désactivée (bench.signer=none)");
+            return;
+        }
+        super.init();
+    }
+
+    @Override
+    protected List<SigningToken> openTokens() {
+        char[] password = "bench".toCharArray();
+        List<SigningToken> tokens = new ArrayList<>();
+        for (int i = 1; i <= tokenCount; i++) {
+            // Même clé à chaque reconnexion, comme un token physique
+            byte[] keyStore = selfSignedKeyStore("PKCS12", password);
+            SigningToken token = newToken("soft-" + i, () -> new KeyStoreSignatureTokenConnection(
+                    keyStore, "PKCS12", new KeyStore.PasswordProtection(password)));
+            try {
+                token.connect();
+            } catch (Exception e) {
+                log.error("Ouverture de la clé logicielle soft-{}: {}", i, e.getMessage(), e);
+            }
+            tokens.add(token);
+        }
+        log.info("Signature XAdES avec {} clé(s) logicielle(s): {}", tokenCount,
+                tokens.get(0).getProfile().getSigningCertificate().getSubject().getPrettyPrintRFC2253());
+        return tokens;
+    }
+
+    @Override
+    public boolean signXmlFile(File inputFile, File outputFile) {
+        return mode == Mode.NONE ? copy(new FileDocument(inputFile), outputFile) : super.signXmlFile(inputFile, outputFile);
+    }
+
+    @Override
+    public byte[] signXml(byte[] content, String documentName) {
+        return mode == Mode.NONE ? content : super.signXml(content, documentName);
+    }
+
+    private boolean copy(DSSDocument document, File outputFile) {
+        try (var in = document.openStream()) {
+            Files.copy(in, outputFile.toPath());
+            return true;
+        } catch (Exception e) {
+            log.error("Erreur copie (bench.signer=none) {}: {}", document.getName(), e.getMessage(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return mode == Mode.NONE || super.isReady();
+    }
+
+    @Override
+    public String getCertificateInfo() {
+        return mode == Mode.NONE ? "Signature désactivée (bench)" : "Clés logicielles de test | " + super.getCertificateInfo();
+    }
+
+    /**
+     * Magasin de clés ({@code PKCS12} ou {@code JKS}) contenant une clé RSA 2048 et
+     * son certificat auto-signé (usage signature), sous l'alias {@link #ALIAS}.
+     */
+    public static byte[] selfSignedKeyStore(String type, char[] password) {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            KeyPair pair = generator.generateKeyPair();
+
+            X500Name subject = new X500Name("CN=Facturation Bench, O=" + TeifInvoiceGenerator.SENDER + ", C=TN");
+            Instant now = Instant.now();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject,
+                    BigInteger.valueOf(now.toEpochMilli()),
+                    Date.from(now.minus(Duration.ofDays(1))), Date.from(now.plus(Duration.ofDays(365))),
+                    subject, pair.getPublic());
+            builder.addExtension(Extension.keyUsage, true,
+                    new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(
+                    builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(pair.getPrivate())));
+
+            KeyStore keyStore = KeyStore.getInstance(type);
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(ALIAS, pair.getPrivate(), password, new Certificate[]{certificate});
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            keyStore.store(out, password);
+            return out.toByteArray();
+        } catch (Exception e) {
+            throw new IllegalStateException("Génération de la clé de test: " + e.getMessage(), e);
+        }
+    }
+}
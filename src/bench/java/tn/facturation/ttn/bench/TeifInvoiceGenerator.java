@@ -0,0 +1,142 @@
+package tn.facturation.ttn.bench;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.SplittableRandom;
+
+/**
+ * Factures TEIF 1.8.8 synthétiques pour les tests de charge.
+ *
+ * Structure et codes de facture_INVOIC_V1_8_8_withSig.xsd (InvoiceHeader,
+ * InvoiceBody avec Bgm, Dtm, PartnerSection, LinSection, InvoiceMoa, InvoiceTax).
+ * Le document est produit sans ds:Signature: c'est l'étape de signature du
+ * pipeline qui l'ajoute, comme pour les fichiers déposés par l'ERP. Les montants
+ * sont cohérents (HT par ligne, TVA 19 %, TTC).
+ *
+ * La taille se règle par le nombre de lignes et, au besoin, par un minimum en
+ * octets: des lignes sont ajoutées jusqu'à l'atteindre.
+ */
+public final class TeifInvoiceGenerator {
+
+    public static final String SENDER = "1234567ABC000";
+    public static final String RECEIVER = "0736202XAM000";
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("ddMMyy");
+    private static final BigDecimal TAX_RATE = new BigDecimal("0.19");
+    // Taille approximative de tout ce qui n'est pas LinSection
+    private static final int ENVELOPE_SIZE = 2600;
+
+    private final int lines;
+    private final int minBytes;
+    private final SplittableRandom random;
+
+    /**
+     * @param lines    nombre de lignes (Lin) par facture, au moins 1
+     * @param minBytes taille minimale du document, 0 = pas de minimum
+     * @param seed     graine: mêmes paramètres, mêmes factures
+     */
+    public TeifInvoiceGenerator(int lines, int minBytes, long seed) {
+        this.lines = Math.max(1, lines);
+        this.minBytes = Math.max(0, minBytes);
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Facture complète dont le DocumentIdentifier vaut {@code documentNumber}
+     * (le pipeline déduit le numéro du nom de fichier: déposer sous documentNumber.xml).
+     */
+    public synchronized byte[] generate(String documentNumber) {
+        StringBuilder linSection = new StringBuilder(lines * 900);
+        BigDecimal totalHt = BigDecimal.ZERO;
+        int count = 0;
+        // Une fois les lignes demandées écrites, on complète jusqu'à la taille minimale
+        while (count < lines || ENVELOPE_SIZE + linSection.length() < minBytes) {
+            count++;
+            totalHt = totalHt.add(appendLine(linSection, count));
+        }
+        return invoice(documentNumber, linSection, totalHt).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private BigDecimal appendLine(StringBuilder out, int index) {
+        int quantity = 1 + random.nextInt(20);
+        BigDecimal unitPrice = BigDecimal.valueOf(100 + random.nextInt(99_900), 3);
+        BigDecimal lineHt = unitPrice.multiply(BigDecimal.valueOf(quantity)).setScale(3, RoundingMode.HALF_UP);
+
+        out.append("<Lin>")
+                .append("<ItemIdentifier>").append(index).append("</ItemIdentifier>")
+                .append("<LinImd lang=\"fr\">")
+                .append("<ItemCode>ART-").append(10_000 + random.nextInt(90_000)).append("</ItemCode>")
+                .append("<ItemDescription>Article de test ").append(index)
+                .append(" - fourniture et prestation associée</ItemDescription>")
+                .append("</LinImd>")
+                .append("<LinQty><Quantity measurementUnit=\"UNIT\">").append(quantity).append("</Quantity></LinQty>")
+                .append("<LinTax><TaxTypeName code=\"I-1602\">TVA</TaxTypeName>")
+                .append("<TaxDetails><TaxRate>19</TaxRate></TaxDetails></LinTax>")
+                .append("<LinMoa>");
+        moa(out, "MoaDetails", "I-183", unitPrice);
+        moa(out, "MoaDetails", "I-171", lineHt);
+        out.append("</LinMoa></Lin>");
+        return lineHt;
+    }
+
+    private String invoice(String documentNumber, CharSequence linSection, BigDecimal totalHt) {
+        BigDecimal tax = totalHt.multiply(TAX_RATE).setScale(3, RoundingMode.HALF_UP);
+        BigDecimal totalTtc = totalHt.add(tax);
+
+        StringBuilder out = new StringBuilder(ENVELOPE_SIZE + linSection.length());
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<TEIF controlingAgency=\"TTN\" version=\"1.8.8\">")
+                .append("<InvoiceHeader>")
+                .append("<MessageSenderIdentifier type=\"I-01\">").append(SENDER).append("</MessageSenderIdentifier>")
+                .append("<MessageRecieverIdentifier type=\"I-01\">").append(RECEIVER).append("</MessageRecieverIdentifier>")
+                .append("</InvoiceHeader>")
+                .append("<InvoiceBody>")
+                .append("<Bgm><DocumentIdentifier>").append(documentNumber).append("</DocumentIdentifier>")
+                .append("<DocumentType code=\"I-11\">Facture</DocumentType></Bgm>")
+                .append("<Dtm><DateText format=\"ddMMyy\" functionCode=\"I-31\">")
+                .append(LocalDate.now().format(DATE)).append("</DateText></Dtm>")
+                .append("<PartnerSection>");
+        partner(out, "I-62", SENDER, "Société Emettrice SARL", "Rue de la Liberté", "Tunis", "1002");
+        partner(out, "I-64", RECEIVER, "Client Destinataire SA", "Avenue Habib Bourguiba", "Sfax", "3000");
+        out.append("</PartnerSection>")
+                .append("<LinSection>").append(linSection).append("</LinSection>")
+                .append("<InvoiceMoa>");
+        moa(out, "AmountDetails", "I-176", totalHt);
+        moa(out, "AmountDetails", "I-181", tax);
+        moa(out, "AmountDetails", "I-180", totalTtc);
+        out.append("</InvoiceMoa>")
+                .append("<InvoiceTax><InvoiceTaxDetails>")
+                .append("<Tax><TaxTypeName code=\"I-1602\">TVA</TaxTypeName>")
+                .append("<TaxDetails><TaxRate>19</TaxRate></TaxDetails></Tax>");
+        moa(out, "AmountDetails", "I-177", totalHt);
+        moa(out, "AmountDetails", "I-178", tax);
+        out.append("</InvoiceTaxDetails></InvoiceTax>")
+                .append("</InvoiceBody>")
+                .append("</TEIF>");
+        return out.toString();
+    }
+
+    private static void partner(StringBuilder out, String functionCode, String identifier, String name,
+                                String street, String city, String postalCode) {
+        out.append("<PartnerDetails functionCode=\"").append(functionCode).append("\"><Nad>")
+                .append("<PartnerIdentifier type=\"I-01\">").append(identifier).append("</PartnerIdentifier>")
+                .append("<PartnerName nameType=\"Qualification\">").append(name).append("</PartnerName>")
+                .append("<PartnerAdresses lang=\"fr\">")
+                .append("<AdressDescription>").append(street).append(", ").append(city).append("</AdressDescription>")
+                .append("<Street>").append(street).append("</Street>")
+                .append("<CityName>").append(city).append("</CityName>")
+                .append("<PostalCode>").append(postalCode).append("</PostalCode>")
+                .append("<Country codeList=\"ISO_3166-1\">TN</Country>")
+                .append("</PartnerAdresses></Nad></PartnerDetails>");
+    }
+
+    private static void moa(StringBuilder out, String wrapper, String amountTypeCode, BigDecimal amount) {
+        out.append('<').append(wrapper).append('>')
+                .append("<Moa amountTypeCode=\"").append(amountTypeCode).append("\" currencyCodeList=\"ISO_4217\">")
+                .append("<Amount currencyIdentifier=\"TND\">").append(amount.toPlainString()).append("</Amount>")
+                .append("</Moa></").append(wrapper).append('>');
+    }
+}
@@ -0,0 +1,59 @@
+package tn.facturation.ttn.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import tn.facturation.ttn.service.XmlDocuments;
+import tn.facturation.ttn.service.XmlValidationService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Étape validate: parsing DOM de la facture puis XmlValidationService.validate.
+ *
+ * Le schéma TEIF utilise des assertions XSD 1.1 que le validateur du JDK ne compile
+ * pas: tant que c'est le cas, validate ne fait rien et le coût de l'étape est celui
+ * du parsing (les deux mesures le montrent).
+ *
+ * mvn -Pbench test-compile exec:exec -Djmh.args="ValidationBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({"10", "200"})
+    private int lines;
+
+    private byte[] content;
+    private XmlValidationService validationService;
+
+    @Setup
+    public void setup() {
+        BenchLogging.quiet();
+        content = new TeifInvoiceGenerator(lines, 0, 42).generate("FAC-2024-000123");
+        validationService = new XmlValidationService();
+    }
+
+    @Benchmark
+    public Document parse() throws Exception {
+        return XmlDocuments.parse(content);
+    }
+
+    @Benchmark
+    public boolean parseAndValidate() throws Exception {
+        return validationService.validate(XmlDocuments.parse(content), "FAC-2024-000123.xml");
+    }
+}
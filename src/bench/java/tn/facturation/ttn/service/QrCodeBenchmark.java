@@ -0,0 +1,80 @@
+package tn.facturation.ttn.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import tn.facturation.ttn.bench.BenchLogging;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Étape QR: image générée par ZXing depuis les données de la facture
+ * (generateQrImage, mode test) contre extraction du CEV fourni par TTN
+ * (generateQrCode sur la copie TTN, cas de production).
+ *
+ * Dans le paquet service pour accéder à generateQrImage (package-private).
+ *
+ * mvn -Pbench test-compile exec:exec -Djmh.args="QrCodeBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QrCodeBenchmark {
+
+    private static final String QR_DATA = "FACTURE:FAC-2024-000123\nREF_TTN:TTN1700000000000\n"
+            + "DATE:15/01/2024\nMONTANT:1190.000 TND\nEMETTEUR:1234567ABC000\n";
+
+    private Path workDir;
+    private File qrFile;
+    private QrCodeService qrCodeService;
+    private Document ttnCopy;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchLogging.quiet();
+        workDir = Files.createTempDirectory("ttn-qr-bench-");
+        qrFile = workDir.resolve("FAC-2024-000123_qr.png").toFile();
+        qrCodeService = new QrCodeService(new AppProperties());
+
+        // Copie TTN réduite au bloc utile: RefTtnVal avec l'image CEV en Base64
+        qrCodeService.generateQrImage(QR_DATA, qrFile);
+        String cev = Base64.getEncoder().encodeToString(Files.readAllBytes(qrFile.toPath()));
+        ttnCopy = XmlDocuments.parse(("<TEIF><RefTtnVal><ReferenceTTN refID=\"I-88\">TTN1700000000000</ReferenceTTN>"
+                + "<ReferenceCEV>" + cev + "</ReferenceCEV></RefTtnVal></TEIF>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(qrFile.toPath());
+        Files.deleteIfExists(workDir);
+    }
+
+    @Benchmark
+    public boolean generateQrImage() {
+        return qrCodeService.generateQrImage(QR_DATA, qrFile);
+    }
+
+    @Benchmark
+    public boolean extractCev() {
+        return qrCodeService.generateQrCode(ttnCopy, qrFile);
+    }
+}
@@ -0,0 +1,135 @@
+package tn.facturation.ttn.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tn.facturation.ttn.bench.BenchLogging;
+import tn.facturation.ttn.bench.TeifInvoiceGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Côté TTN de TtnSoapClientService, hors réseau: corps saveEfact produit en flux
+ * (Base64 du XML signé entre préfixe et suffixe précalculés) et lecture StAX des
+ * réponses saveEfact et consultEfact (xmlContent décodé dans un fichier).
+ * La construction de consultEfact est mesurée par SoapEnvelopeBenchmark.
+ *
+ * Dans le paquet service pour accéder aux classes package-private (les méthodes
+ * mesurées ne retournent que des types publics, visibles du code généré par JMH).
+ *
+ * mvn -Pbench test-compile exec:exec -Djmh.args="SoapResponseBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SoapResponseBenchmark {
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>";
+    private static final String ENVELOPE_END = "</S:Body></S:Envelope>";
+
+    @Param({"10", "200"})
+    private int lines;
+
+    private Path workDir;
+    private Path signedFile;
+    private Path ttnCopy;
+    private SoapEnvelopeTemplates templates;
+    private byte[] saveEfactResponse;
+    private byte[] consultEfactResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchLogging.quiet();
+        workDir = Files.createTempDirectory("ttn-soap-bench-");
+        byte[] invoice = new TeifInvoiceGenerator(lines, 0, 42).generate("FAC-2024-000123");
+        signedFile = Files.write(workDir.resolve("FAC-2024-000123_signed.xml"), invoice);
+        ttnCopy = workDir.resolve("FAC-2024-000123_ttn.xml");
+        templates = new SoapEnvelopeTemplates("mon_login_ttn", "mon_password_ttn", "1234567ABC000");
+
+        saveEfactResponse = (ENVELOPE_START
+                + "<ns2:saveEfactResponse xmlns:ns2=\"" + SoapEnvelopeTemplates.NAMESPACE_URI + "\"><return>"
+                + "<status>Facture enregistrée avec succès</status><idSaveEfact>TTN1700000000000</idSaveEfact>"
+                + "</return></ns2:saveEfactResponse>" + ENVELOPE_END).getBytes(StandardCharsets.UTF_8);
+        consultEfactResponse = (ENVELOPE_START
+                + "<ns2:consultEfactResponse xmlns:ns2=\"" + SoapEnvelopeTemplates.NAMESPACE_URI + "\"><return>"
+                + "<efact><documentNumber>FAC-2024-000123</documentNumber><idSaveEfact>TTN1700000000000</idSaveEfact>"
+                + "<xmlContent>" + Base64.getMimeEncoder().encodeToString(invoice) + "</xmlContent></efact>"
+                + "</return></ns2:consultEfactResponse>" + ENVELOPE_END).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(signedFile);
+        Files.deleteIfExists(ttnCopy);
+        Files.deleteIfExists(workDir);
+    }
+
+    @Benchmark
+    public long saveEfactRequestBody() throws Exception {
+        return drain(SaveEfactRequestBody.of(templates, signedFile));
+    }
+
+    @Benchmark
+    public String readSaveEfactResponse() throws Exception {
+        return SoapResponseReader.read(new ByteArrayInputStream(saveEfactResponse), null).idSaveEfact();
+    }
+
+    @Benchmark
+    public boolean readConsultEfactResponse() throws Exception {
+        return SoapResponseReader.read(new ByteArrayInputStream(consultEfactResponse), ttnCopy).hasContent();
+    }
+
+    /**
+     * Lit tout le corps comme le ferait le client HTTP, sans l'envoyer.
+     */
+    private static long drain(HttpRequest.BodyPublisher publisher) throws Exception {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private long bytes;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                bytes += item.remaining();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(bytes);
+            }
+        });
+        return done.get(10, TimeUnit.SECONDS);
+    }
+}
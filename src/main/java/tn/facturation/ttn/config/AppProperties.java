@@ -1,11 +1,16 @@
 package tn.facturation.ttn.config;
 
 import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.validation.annotation.Validated;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 @Data
 @Configuration
@@ -15,6 +20,9 @@ public class AppProperties {
 
     private Folders folders = new Folders();
     private Watcher watcher = new Watcher();
+    private Pipeline pipeline = new Pipeline();
+    private Journal journal = new Journal();
+    private Trace trace = new Trace();
     private Certificate certificate = new Certificate();
     private Ttn ttn = new Ttn();
     private Qrcode qrcode = new Qrcode();
@@ -44,14 +52,58 @@ public class AppProperties {
         private long fileStabilityTimeoutMs = 2000;
     }
 
+    @Data
+    public static class Pipeline {
+        private Stage validate = new Stage(Runtime.getRuntime().availableProcessors(), 500);
+        private Stage sign = new Stage(1, 200);
+        private Stage send = new Stage(4, 200);
+        private Stage consult = new Stage(4, 200);
+        private Stage finish = new Stage(2, 200);
+        // Écriture des XML signés en tâche de fond (hors chemin critique de l'envoi TTN)
+        private Stage persist = new Stage(1, 200);
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Stage {
+        private int workers = 1;
+        private int queueCapacity = 200;
+    }
+
+    @Data
+    public static class Journal {
+        private boolean enabled = true;
+        private String file = "journal/factures.journal";
+        // fsync après chaque transition (durable même en cas de coupure électrique)
+        private boolean sync = true;
+    }
+
+    @Data
+    public static class Trace {
+        // Événements gardés en mémoire pour /api/invoices/{numero}/timeline
+        // (arrondi à la puissance de 2 supérieure; ~8 événements par facture)
+        private int capacity = 65536;
+    }
+
     @Data
     public static class Certificate {
+        // Certificat logiciel (sans token): keystore PKCS12 ou JKS
         private String path;
         private String password;
         private String alias;
+        // PKCS12, JKS... vide = détecté d'après le fichier
+        private String type;
 
         // NOUVELLE config PKCS11 pour token SafeNet
         private Pkcs11 pkcs11 = new Pkcs11();
+
+        /**
+         * Signature par le keystore logiciel (path) plutôt que par les tokens PKCS#11.
+         */
+        public boolean useKeyStore() {
+            return !pkcs11.isEnabled() && path != null && !path.isEmpty();
+        }
     }
 
     @Data
@@ -60,6 +112,33 @@ public class AppProperties {
         private String library = "C:\\Windows\\System32\\eTPKCS11.dll";
         private String pin;
         private int slotIndex = 0;
+
+        // Pool de signature: une entrée par token/slot (library et pin par défaut:
+        // ceux ci-dessus). Vide = un seul token (library, slotIndex)
+        private List<Pkcs11Token> tokens = new ArrayList<>();
+        // Token déconnecté après N échecs consécutifs, puis reconnecté en tâche de fond
+        private int failureThreshold = 3;
+        private Reconnect reconnect = new Reconnect();
+    }
+
+    @Data
+    public static class Reconnect {
+        // Reconnexion d'un token perdu: délai x multiplier à chaque échec
+        private long initialDelayMs = 2000;
+        private long maxDelayMs = 60000;
+        private double multiplier = 2.0;
+        // Test périodique des tokens inactifs (0 = désactivé)
+        private long probeIntervalMs = 30000;
+        // Aucun token connecté: facture reprogrammée (toutes les initialDelayMs) au plus maxWaitMs
+        private long maxWaitMs = 120000;
+    }
+
+    @Data
+    public static class Pkcs11Token {
+        private String name;
+        private String library;
+        private String pin;
+        private int slotIndex = 0;
     }
 
     @Data
@@ -74,6 +153,72 @@ public class AppProperties {
         private int connectionTimeoutMs = 30000;
         private int readTimeoutMs = 30000;
         private boolean enabled = false;
+        private CircuitBreaker circuitBreaker = new CircuitBreaker();
+        private Http http = new Http();
+        private Limiter limiter = new Limiter();
+        private ConsultPolling consultPolling = new ConsultPolling();
+        private Reconciliation reconciliation = new Reconciliation();
+        private Health health = new Health();
+    }
+
+    @Data
+    public static class Http {
+        private int ioThreads = 4;
+        // Lecture des réponses et suite du pipeline (journal, étape suivante)
+        private int responseThreads = 4;
+    }
+
+    @Data
+    public static class Limiter {
+        // Nombre d'appels TTN simultanés, ajusté entre min et max (AIMD)
+        private int initialLimit = 4;
+        private int minLimit = 1;
+        private int maxLimit = 32;
+        private double backoffRatio = 0.7;
+        // Latence jugée stable tant qu'elle reste sous tolerance x latence moyenne
+        private double latencyTolerance = 2.0;
+    }
+
+    @Data
+    public static class ConsultPolling {
+        // Délais entre deux consultations d'une facture envoyée (croissants)
+        private long initialDelayMs = 2000;
+        private double multiplier = 2.0;
+        private long maxDelayMs = 60000;
+        // Au-delà, la facture passe en erreur faute de copie TTN
+        private long maxWaitMs = 3600000;
+        // Roue temporelle: granularité et nombre de cases
+        private long tickMs = 500;
+        private int wheelSize = 512;
+    }
+
+    @Data
+    public static class Reconciliation {
+        // Consultation groupée par période quand beaucoup de copies TTN sont attendues.
+        // Désactivée tant que les critères par période ne sont pas confirmés sur le WSDL
+        private boolean enabled = false;
+        private long intervalMs = 300000;
+        private int minPending = 20;
+        private int lookbackDays = 2;
+        private int pageSize = 100;
+        private int maxPages = 50;
+    }
+
+    @Data
+    public static class Health {
+        // Test de disponibilité (GET du WSDL) en tâche de fond
+        private long intervalMs = 30000;
+        private int timeoutMs = 5000;
+    }
+
+    @Data
+    public static class CircuitBreaker {
+        private int failureThreshold = 5;
+        private long openDurationMs = 30000;
+        private int halfOpenProbes = 1;
+        // Factures mises en attente locale pendant que TTN est indisponible
+        private int bufferCapacity = 10000;
+        private int drainPerSecond = 5;
     }
 
     @Data
@@ -86,6 +231,8 @@ public class AppProperties {
     public static class Retry {
         private int maxAttempts = 3;
         private long delayMs = 1000;
+        private double multiplier = 2.0;
+        private long maxDelayMs = 60000;
     }
 
     @Data
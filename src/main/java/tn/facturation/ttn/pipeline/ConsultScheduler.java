@@ -0,0 +1,201 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consultations TTN différées des factures envoyées (app.ttn.consult-polling.*).
+ *
+ * TTN ne produit pas toujours la copie signée (avec le CEV) immédiatement après
+ * saveEfact. Les factures en attente sont rangées dans une roue temporelle: une
+ * case par tick, un seul thread qui avance d'une case à chaque tick et remet dans
+ * la file de consultation toutes les factures échues ensemble. Aucun thread ne
+ * dort par facture, et le coût d'un ajout ne dépend pas du nombre en attente.
+ */
+@Slf4j
+@Component
+public class ConsultScheduler {
+
+    private final AppProperties.ConsultPolling settings;
+    private final List<LinkedList<Entry>> wheel;
+    private final ScheduledExecutorService ticker;
+    private final Counter pollCounter;
+
+    private final Map<String, Entry> byInvoice = new HashMap<>();
+
+    private int cursor;
+
+    public ConsultScheduler(AppProperties config, MeterRegistry meterRegistry) {
+        this.settings = config.getTtn().getConsultPolling();
+        int size = Math.max(1, settings.getWheelSize());
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new LinkedList<>());
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ttn-consult-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.pollCounter = Counter.builder("factures.consult.polls")
+                .description("Consultations TTN programmées en attente de la copie signée")
+                .register(meterRegistry);
+        Gauge.builder("factures.consult.pending", this, ConsultScheduler::getPendingCount)
+                .description("Factures envoyées en attente de la copie TTN")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        long tickMs = tickMs();
+        ticker.scheduleAtFixedRate(this::tick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Programme la prochaine consultation de cette facture.
+     *
+     * @param poll remet la facture dans la file de consultation
+     * @return false si la copie TTN est attendue depuis plus de {@code maxWaitMs}
+     */
+    public boolean schedule(InvoiceContext context, Runnable poll) {
+        long now = System.nanoTime();
+        if (context.getConsultPolls() == 0) {
+            context.setConsultSinceNanos(now);
+        } else if (TimeUnit.NANOSECONDS.toMillis(now - context.getConsultSinceNanos()) >= settings.getMaxWaitMs()) {
+            return false;
+        }
+        if (ticker.isShutdown()) {
+            return false;
+        }
+
+        int count = context.getConsultPolls() + 1;
+        context.setConsultPolls(count);
+        long delay = nextDelay(count);
+        log.debug("Copie TTN non disponible pour {}, consultation {} dans {} ms",
+                context.getInvoiceNumber(), count, delay);
+
+        long ticks = Math.max(1, (delay + tickMs() - 1) / tickMs());
+        synchronized (this) {
+            int slot = (int) ((cursor + ticks - 1) % wheel.size());
+            Entry entry = new Entry((ticks - 1) / wheel.size(), context, poll);
+            wheel.get(slot).add(entry);
+            byInvoice.put(context.getInvoiceNumber(), entry);
+        }
+        pollCounter.increment();
+        return true;
+    }
+
+    public synchronized int getPendingCount() {
+        return byInvoice.size();
+    }
+
+    /**
+     * Numéros des factures envoyées dont la copie TTN est attendue.
+     */
+    public synchronized Set<String> pendingInvoices() {
+        return new HashSet<>(byInvoice.keySet());
+    }
+
+    /**
+     * Retire une facture de la roue (copie obtenue par un autre moyen).
+     *
+     * @return son contexte, ou null si elle n'est plus en attente (consultation déjà partie)
+     */
+    public synchronized InvoiceContext claim(String invoiceNumber) {
+        Entry entry = byInvoice.remove(invoiceNumber);
+        if (entry == null) {
+            return null;
+        }
+        entry.cancelled = true;
+        return entry.context;
+    }
+
+    /**
+     * Délai avant la n-ième consultation: initialDelayMs x multiplier^(n-1), plafonné.
+     */
+    long nextDelay(int poll) {
+        double exponential = settings.getInitialDelayMs() * Math.pow(settings.getMultiplier(), poll - 1);
+        return (long) Math.min(exponential, settings.getMaxDelayMs());
+    }
+
+    /**
+     * Avance d'une case (appelé par le ticker; direct dans les tests).
+     */
+    void tick() {
+        List<Runnable> due = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = wheel.get(cursor).iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.cancelled) {
+                    it.remove();
+                } else if (entry.rounds > 0) {
+                    entry.rounds--;
+                } else {
+                    it.remove();
+                    byInvoice.remove(entry.context.getInvoiceNumber(), entry);
+                    due.add(entry.task);
+                }
+            }
+            cursor = (cursor + 1) % wheel.size();
+        }
+
+        if (!due.isEmpty()) {
+            log.debug("{} consultation(s) TTN échue(s)", due.size());
+        }
+        for (Runnable task : due) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("Erreur consultation programmée: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private long tickMs() {
+        return Math.max(1, settings.getTickMs());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Les factures en attente sont SUBMITTED (ou SENDING) dans le journal: reprises au démarrage
+        ticker.shutdownNow();
+        int remaining = getPendingCount();
+        if (remaining > 0) {
+            log.info("{} facture(s) en attente de copie TTN à l'arrêt", remaining);
+        }
+    }
+
+    private static final class Entry {
+
+        private long rounds;
+        private boolean cancelled;
+        private final InvoiceContext context;
+        private final Runnable task;
+
+        private Entry(long rounds, InvoiceContext context, Runnable task) {
+            this.rounds = rounds;
+            this.context = context;
+            this.task = task;
+        }
+    }
+}
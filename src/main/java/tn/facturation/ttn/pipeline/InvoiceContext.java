@@ -0,0 +1,71 @@
+package tn.facturation.ttn.pipeline;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.w3c.dom.Document;
+
+import java.io.File;
+
+/**
+ * État d'une facture transmis d'une étape du pipeline à la suivante.
+ *
+ * Le fichier source est lu et parsé une seule fois (étape validate); les étapes
+ * suivantes travaillent sur {@link #content} et {@link #document} au lieu de
+ * revenir sur le disque.
+ */
+@Getter
+@Setter
+public class InvoiceContext {
+
+    private final File inputFile;
+    private final String invoiceNumber;
+    private final long startNanos = System.nanoTime();
+
+    // Identifiant de la chronologie (InvoiceTrace), repris dans les logs
+    private long traceId;
+
+    private byte[] content;
+    private Document document;
+
+    // XML signé gardé en mémoire jusqu'à l'envoi TTN (le fichier est écrit à part)
+    private byte[] signedContent;
+    private File signedFile;
+    private String ttnReference;
+    private File ttnFile;
+
+    // Reprise d'un envoi interrompu (SENDING): réception par TTN non confirmée
+    private boolean submissionUnconfirmed;
+
+    // Dernière étape commencée (tag des métriques d'échec)
+    private String stage;
+
+    // Tentatives déjà faites pour l'étape en cours (remis à zéro à chaque étape)
+    private int attempts;
+
+    // Début de l'attente d'un token de signature connecté (0 = pas d'attente)
+    private long signWaitSinceNanos;
+
+    // Consultations TTN déjà faites en attendant la copie signée
+    private int consultPolls;
+    private long consultSinceNanos;
+
+    public InvoiceContext(File inputFile, String invoiceNumber) {
+        this.inputFile = inputFile;
+        this.invoiceNumber = invoiceNumber;
+    }
+
+    /**
+     * Libère le contenu source quand plus aucune étape n'en a besoin.
+     */
+    public void releaseContent() {
+        this.content = null;
+        this.document = null;
+    }
+
+    /**
+     * Libère le XML signé une fois remis à TTN (le fichier signé reste la référence).
+     */
+    public void releaseSignedContent() {
+        this.signedContent = null;
+    }
+}
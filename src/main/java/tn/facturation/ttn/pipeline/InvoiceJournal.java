@@ -0,0 +1,258 @@
+package tn.facturation.ttn.pipeline;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Journal local (append-only) des transitions d'étape de chaque facture.
+ *
+ * Une ligne par transition: date, numéro, état, puis les fichiers et la référence
+ * TTN connus à ce moment. Au démarrage le journal est rejoué pour reprendre chaque
+ * facture depuis sa dernière étape terminée (pas de double envoi à TTN ni de
+ * signature inutile), puis compacté pour ne garder que les factures en cours.
+ */
+@Slf4j
+@Component
+public class InvoiceJournal {
+
+    public enum State {
+        // SENDING: saveEfact parti sans réponse connue, TTN a pu enregistrer la facture
+        RECEIVED, VALIDATED, SIGNED, SENDING, SUBMITTED, CONSULTED, QR_DONE, DONE, FAILED;
+
+        boolean isTerminal() {
+            return this == DONE || this == FAILED;
+        }
+    }
+
+    /**
+     * Dernier point de reprise connu d'une facture.
+     */
+    public record Checkpoint(String invoiceNumber, State state, String inputFile,
+                             String signedFile, String ttnReference, String ttnFile) {
+    }
+
+    private static final String SEPARATOR = "\t";
+    private static final String EMPTY = "-";
+
+    private final AppProperties config;
+    private final Map<String, Checkpoint> openInvoices = new ConcurrentHashMap<>();
+
+    private Path journalPath;
+    private FileOutputStream output;
+    private Writer writer;
+
+    public InvoiceJournal(AppProperties config) {
+        this.config = config;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!config.getJournal().isEnabled()) {
+            log.info("Journal des factures désactivé");
+            return;
+        }
+
+        try {
+            journalPath = Paths.get(config.getJournal().getFile());
+            if (journalPath.getParent() != null) {
+                Files.createDirectories(journalPath.getParent());
+            }
+            replay();
+            compact();
+            output = new FileOutputStream(journalPath.toFile(), true);
+            writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            log.info("Journal des factures: {} ({} facture(s) à reprendre)", journalPath, openInvoices.size());
+        } catch (IOException e) {
+            log.error("Journal des factures indisponible: {}", e.getMessage(), e);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Point de reprise d'une facture non terminée, ou null.
+     */
+    public Checkpoint checkpoint(String invoiceNumber) {
+        return openInvoices.get(invoiceNumber);
+    }
+
+    public void record(InvoiceContext context, State state) {
+        if (writer == null) {
+            return;
+        }
+
+        Checkpoint checkpoint = new Checkpoint(
+                context.getInvoiceNumber(),
+                state,
+                path(context.getInputFile()),
+                path(context.getSignedFile()),
+                context.getTtnReference(),
+                path(context.getTtnFile())
+        );
+
+        apply(checkpoint);
+        append(checkpoint);
+    }
+
+    private synchronized void append(Checkpoint checkpoint) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(format(checkpoint));
+            writer.write('\n');
+            writer.flush();
+            if (config.getJournal().isSync()) {
+                output.getFD().sync();
+            }
+        } catch (IOException e) {
+            log.error("Erreur écriture journal ({}): {}", checkpoint.invoiceNumber(), e.getMessage());
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Checkpoint checkpoint = parse(line);
+                if (checkpoint == null) {
+                    continue;
+                }
+                lines++;
+                apply(checkpoint);
+            }
+        }
+
+        log.info("Journal rejoué: {} transition(s)", lines);
+    }
+
+    private void apply(Checkpoint checkpoint) {
+        if (checkpoint.state().isTerminal()) {
+            openInvoices.remove(checkpoint.invoiceNumber());
+            return;
+        }
+
+        openInvoices.compute(checkpoint.invoiceNumber(), (number, previous) -> {
+            // RECEIVED = nouveau traitement depuis le début
+            if (previous == null || checkpoint.state() == State.RECEIVED) {
+                return checkpoint;
+            }
+            // Sinon les états ne reculent pas: on garde l'étape la plus avancée
+            if (checkpoint.state().ordinal() < previous.state().ordinal()) {
+                return merge(checkpoint, previous);
+            }
+            return merge(previous, checkpoint);
+        });
+    }
+
+    private void compact() throws IOException {
+        Path tmp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        // Fichier source supprimé ou déplacé à la main: plus rien à reprendre
+        int before = openInvoices.size();
+        openInvoices.values().removeIf(checkpoint -> checkpoint.inputFile() == null
+                || !Files.exists(Paths.get(checkpoint.inputFile())));
+        if (openInvoices.size() < before) {
+            log.info("Journal: {} facture(s) sans fichier source retirée(s)", before - openInvoices.size());
+        }
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Checkpoint checkpoint : openInvoices.values()) {
+                out.write(format(checkpoint));
+                out.write('\n');
+            }
+        }
+        Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Checkpoint merge(Checkpoint previous, Checkpoint current) {
+        return new Checkpoint(
+                current.invoiceNumber(),
+                current.state(),
+                current.inputFile() != null ? current.inputFile() : previous.inputFile(),
+                current.signedFile() != null ? current.signedFile() : previous.signedFile(),
+                current.ttnReference() != null ? current.ttnReference() : previous.ttnReference(),
+                current.ttnFile() != null ? current.ttnFile() : previous.ttnFile()
+        );
+    }
+
+    private String format(Checkpoint checkpoint) {
+        return String.join(SEPARATOR,
+                String.valueOf(System.currentTimeMillis()),
+                checkpoint.invoiceNumber(),
+                checkpoint.state().name(),
+                orEmpty(checkpoint.inputFile()),
+                orEmpty(checkpoint.signedFile()),
+                orEmpty(checkpoint.ttnReference()),
+                orEmpty(checkpoint.ttnFile()));
+    }
+
+    private Checkpoint parse(String line) {
+        String[] parts = line.split(SEPARATOR, -1);
+        if (parts.length < 7) {
+            // Dernière ligne tronquée par un arrêt brutal
+            log.warn("Ligne de journal ignorée: {}", line);
+            return null;
+        }
+        try {
+            return new Checkpoint(
+                    parts[1],
+                    State.valueOf(parts[2]),
+                    orNull(parts[3]),
+                    orNull(parts[4]),
+                    orNull(parts[5]),
+                    orNull(parts[6]));
+        } catch (IllegalArgumentException e) {
+            log.warn("Ligne de journal ignorée: {}", line);
+            return null;
+        }
+    }
+
+    private String path(File file) {
+        return file != null ? file.getAbsolutePath() : null;
+    }
+
+    private String orEmpty(String value) {
+        return value == null || value.isEmpty() ? EMPTY : value;
+    }
+
+    private String orNull(String value) {
+        return EMPTY.equals(value) || value.isEmpty() ? null : value;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.error("Erreur fermeture journal: {}", e.getMessage());
+        }
+        writer = null;
+        output = null;
+    }
+}
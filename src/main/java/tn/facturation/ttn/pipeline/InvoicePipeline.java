@@ -0,0 +1,430 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.service.FactureProcessorService;
+import tn.facturation.ttn.service.SigningTokenUnavailableException;
+import tn.facturation.ttn.service.TtnCircuitOpenException;
+import tn.facturation.ttn.service.TtnException;
+import tn.facturation.ttn.service.TtnSoapClientService;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moteur d'exécution des factures, découpé en étapes:
+ * validate → sign → send → consult → finish.
+ *
+ * Chaque étape a sa propre file et son propre pool (app.pipeline.*), ce qui permet
+ * de paralléliser largement la validation (CPU), de dimensionner la signature sur
+ * le token et de garder beaucoup d'appels TTN en vol. Les étapes se chevauchent:
+ * la facture N+1 est signée pendant que la facture N attend TTN.
+ */
+@Slf4j
+@Service
+public class InvoicePipeline {
+
+    private static final long STABLE_AGE_MS = 1000;
+    private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+
+    private final AppProperties config;
+    private final FactureProcessorService processor;
+    private final InvoiceJournal journal;
+    private final RetryScheduler retryScheduler;
+    private final OutboundBuffer outboundBuffer;
+    private final ConsultScheduler consultScheduler;
+    private final InvoiceTrace trace;
+    private final SignedFileWriter signedFileWriter;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final Map<Step, PipelineStage> stages = new EnumMap<>(Step.class);
+
+    public InvoicePipeline(AppProperties config, FactureProcessorService processor,
+                           InvoiceJournal journal, RetryScheduler retryScheduler,
+                           OutboundBuffer outboundBuffer, ConsultScheduler consultScheduler,
+                           InvoiceTrace trace, SignedFileWriter signedFileWriter,
+                           MeterRegistry meterRegistry) {
+        this.config = config;
+        this.processor = processor;
+        this.journal = journal;
+        this.retryScheduler = retryScheduler;
+        this.outboundBuffer = outboundBuffer;
+        this.consultScheduler = consultScheduler;
+        this.trace = trace;
+        this.signedFileWriter = signedFileWriter;
+
+        AppProperties.Pipeline pipeline = config.getPipeline();
+        stages.put(Step.VALIDATE, new PipelineStage("validate", pipeline.getValidate(), meterRegistry));
+        stages.put(Step.SIGN, new PipelineStage("sign", pipeline.getSign(), meterRegistry));
+        stages.put(Step.SEND, new PipelineStage("send", pipeline.getSend(), meterRegistry));
+        stages.put(Step.CONSULT, new PipelineStage("consult", pipeline.getConsult(), meterRegistry));
+        stages.put(Step.FINISH, new PipelineStage("finish", pipeline.getFinish(), meterRegistry));
+    }
+
+    /**
+     * Soumet un fichier au pipeline. Ignoré si ce fichier est déjà en cours.
+     */
+    public boolean submit(File file) {
+        String key = file.getAbsolutePath();
+        if (!inFlight.add(key)) {
+            log.debug("Déjà en cours: {}", file.getName());
+            return false;
+        }
+
+        InvoiceContext context = processor.newContext(file);
+        context.setTraceId(trace.newTraceId());
+        trace.record(context, null, InvoiceTrace.Phase.RECEIVED);
+        Step step = resume(context);
+        if (step == Step.VALIDATE) {
+            journal.record(context, InvoiceJournal.State.RECEIVED);
+        }
+        return dispatch(step, context);
+    }
+
+    public boolean isInFlight(File file) {
+        return inFlight.contains(file.getAbsolutePath());
+    }
+
+    public Map<String, Object> getStageStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (PipelineStage stage : stages.values()) {
+            stats.put(stage.getName(), stage.snapshot());
+        }
+        stats.put("persist", signedFileWriter.snapshot());
+        stats.put("inFlight", inFlight.size());
+        stats.put("awaitingTtnCopy", consultScheduler.getPendingCount());
+        return stats;
+    }
+
+    /**
+     * Exécute une étape et retourne l'étape suivante (null = terminé). Les appels TTN
+     * sont asynchrones: le worker rend la main dès la requête partie et la suite est
+     * enchaînée à l'arrivée de la réponse.
+     */
+    private CompletableFuture<Step> handle(Step step, InvoiceContext context) throws Exception {
+        switch (step) {
+            case VALIDATE -> {
+                File file = context.getInputFile();
+                waitForFileStability(file);
+                if (!file.exists()) {
+                    log.debug("Fichier disparu avant traitement: {}", file.getName());
+                    return CompletableFuture.completedFuture(null);
+                }
+                processor.validate(context);
+                journal.record(context, InvoiceJournal.State.VALIDATED);
+                return CompletableFuture.completedFuture(Step.SIGN);
+            }
+            case SIGN -> {
+                // Point SIGNED (et envoi) seulement une fois le fichier signé écrit:
+                // le journal ne désigne jamais un fichier absent
+                return processor.sign(context).thenApply(signedFile -> {
+                    journal.record(context, InvoiceJournal.State.SIGNED);
+                    return Step.SEND;
+                });
+            }
+            case SEND -> {
+                if (config.getTtn().isEnabled()) {
+                    // Envoi en cours: à la reprise TTN sera consulté avant tout renvoi
+                    journal.record(context, InvoiceJournal.State.SENDING);
+                }
+                return processor.submitToTtn(context).thenApply(ignored -> {
+                    if (!config.getTtn().isEnabled()) {
+                        return Step.FINISH;
+                    }
+                    context.setSubmissionUnconfirmed(false);
+                    journal.record(context, InvoiceJournal.State.SUBMITTED);
+                    return Step.CONSULT;
+                });
+            }
+            case CONSULT -> {
+                return processor.consultTtn(context).thenApply(landed -> {
+                    if (!landed) {
+                        // Copie TTN pas encore produite: nouvelle consultation plus tard
+                        return Step.CONSULT;
+                    }
+                    journal.record(context, InvoiceJournal.State.CONSULTED);
+                    return Step.FINISH;
+                });
+            }
+            default -> {
+                processor.generateQr(context);
+                journal.record(context, InvoiceJournal.State.QR_DONE);
+                processor.complete(context);
+                journal.record(context, InvoiceJournal.State.DONE);
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+    }
+
+    /**
+     * Copie TTN obtenue hors consultation individuelle (réconciliation): la facture
+     * reprend directement à l'étape finish.
+     */
+    void reconciled(InvoiceContext context) {
+        journal.record(context, InvoiceJournal.State.CONSULTED);
+        advance(context, Step.FINISH);
+    }
+
+    /**
+     * Remet une facture dans l'attente de sa copie TTN (consultations individuelles).
+     */
+    void awaitTtnCopy(InvoiceContext context) {
+        advance(context, Step.CONSULT);
+    }
+
+    private boolean dispatch(Step step, InvoiceContext context) {
+        PipelineStage stage = stages.get(step);
+        try {
+            trace.record(context, stage.getName(), InvoiceTrace.Phase.ENQUEUED);
+            stage.submit(() -> run(step, context));
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.error("Facture refusée par l'étape {}: {} ({})",
+                    stage.getName(), context.getInvoiceNumber(), e.getMessage());
+            release(context);
+            return false;
+        }
+    }
+
+    private void run(Step step, InvoiceContext context) {
+        String stageName = stages.get(step).getName();
+        trace.record(context, stageName, InvoiceTrace.Phase.STARTED);
+        CompletableFuture<Step> result;
+        try {
+            result = handle(step, context);
+        } catch (Exception e) {
+            trace.record(context, stageName, InvoiceTrace.Phase.ERROR);
+            onError(step, context, e);
+            return;
+        }
+
+        result.whenComplete((next, error) -> {
+            if (error != null) {
+                trace.record(context, stageName, InvoiceTrace.Phase.ERROR);
+                onError(step, context, TtnSoapClientService.unwrap(error));
+            } else {
+                trace.record(context, stageName, InvoiceTrace.Phase.COMPLETED);
+                advance(context, next);
+            }
+        });
+    }
+
+    private void advance(InvoiceContext context, Step next) {
+        context.setAttempts(0);
+        if (next == null) {
+            trace.record(context, null, InvoiceTrace.Phase.DONE);
+            release(context);
+        } else if (next == Step.CONSULT) {
+            // Les consultations passent par la roue: l'envoi des suivantes continue pendant l'attente
+            if (!consultScheduler.schedule(context, () -> dispatch(Step.CONSULT, context))) {
+                if (context.isSubmissionUnconfirmed()) {
+                    resend(context);
+                } else {
+                    leaveSubmitted(context);
+                }
+            }
+        } else {
+            dispatch(next, context);
+        }
+    }
+
+    /**
+     * Envoi interrompu par un arrêt et aucune copie TTN pendant tout le délai de
+     * consultation: saveEfact n'avait pas abouti, la facture est renvoyée.
+     */
+    private void resend(InvoiceContext context) {
+        log.warn("Facture {} toujours absente de TTN après {} consultation(s): renvoi",
+                context.getInvoiceNumber(), context.getConsultPolls());
+        context.setConsultPolls(0);
+        dispatch(Step.SEND, context);
+    }
+
+    /**
+     * Facture acceptée par TTN mais copie toujours absente: jamais en erreur (un
+     * retraitement manuel la renverrait). Elle reste SUBMITTED dans le journal et
+     * dans le dossier d'entrée; le rescan du FileWatcher ou la réconciliation la reprend.
+     */
+    private void leaveSubmitted(InvoiceContext context) {
+        log.warn("Copie TTN toujours absente pour {} après {} consultation(s): laissée en attente",
+                context.getInvoiceNumber(), context.getConsultPolls());
+        trace.record(context, null, InvoiceTrace.Phase.DONE);
+        release(context);
+    }
+
+    private void onError(Step step, InvoiceContext context, Throwable error) {
+        if (step == Step.CONSULT) {
+            onConsultError(context, error);
+        } else if (error instanceof TtnCircuitOpenException e) {
+            // TTN indisponible: attente locale sans consommer de tentative
+            releaseIfPersisted(context);
+            if (!outboundBuffer.park(context, () -> dispatch(step, context))) {
+                fail(context, e);
+            }
+        } else if (error instanceof TtnException e) {
+            // Panne TTN passagère: la facture repassera par la même étape plus tard
+            if (!e.isRetryable() || !retryScheduler.schedule(context, () -> dispatch(step, context))) {
+                fail(context, e);
+            }
+        } else if (error instanceof SigningTokenUnavailableException e) {
+            // Aucun token connecté: la facture attend la reconnexion dans le timer, pas sur un worker sign
+            if (!signLater(context)) {
+                fail(context, e);
+            }
+        } else if (error instanceof Exception e) {
+            fail(context, e);
+        } else {
+            fail(context, new Exception(error));
+        }
+    }
+
+    /**
+     * Signature reprogrammée après le délai de reconnexion d'un token, tant que
+     * l'attente totale de la facture reste sous reconnect.max-wait-ms.
+     *
+     * @return false si l'attente a expiré ou si le timer est arrêté
+     */
+    private boolean signLater(InvoiceContext context) {
+        AppProperties.Reconnect reconnect = config.getCertificate().getPkcs11().getReconnect();
+        long now = System.nanoTime();
+        if (context.getSignWaitSinceNanos() == 0) {
+            context.setSignWaitSinceNanos(now);
+        }
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(now - context.getSignWaitSinceNanos());
+        if (waitedMs >= reconnect.getMaxWaitMs()) {
+            log.error("Aucun token reconnecté après {} ms d'attente pour {}", waitedMs, context.getInvoiceNumber());
+            return false;
+        }
+        return retryScheduler.scheduleAfter(context, reconnect.getInitialDelayMs(), () -> dispatch(Step.SIGN, context));
+    }
+
+    /**
+     * Échec d'une consultation: la facture a déjà été remise à TTN (ou a pu l'être),
+     * elle ne passe jamais en erreur. Nouvelle tentative rapprochée tant qu'il en
+     * reste, sinon retour dans la roue des consultations.
+     */
+    private void onConsultError(InvoiceContext context, Throwable error) {
+        Runnable poll = () -> dispatch(Step.CONSULT, context);
+        if (error instanceof TtnCircuitOpenException) {
+            if (outboundBuffer.park(context, poll)) {
+                return;
+            }
+        } else if (error instanceof TtnException e && e.isRetryable()) {
+            if (retryScheduler.schedule(context, poll)) {
+                return;
+            }
+        }
+        log.warn("Consultation TTN en échec pour {}: {}", context.getInvoiceNumber(), error.getMessage());
+        advance(context, Step.CONSULT);
+    }
+
+    /**
+     * Attente potentiellement longue: le fichier signé est écrit avant tout envoi
+     * (voir l'étape SIGN), le XML signé sera relu depuis le disque à la reprise.
+     */
+    private void releaseIfPersisted(InvoiceContext context) {
+        File signedFile = context.getSignedFile();
+        if (context.getSignedContent() != null && signedFile != null && signedFile.exists()) {
+            context.releaseSignedContent();
+        }
+    }
+
+    private void fail(InvoiceContext context, Exception e) {
+        trace.record(context, null, InvoiceTrace.Phase.FAILED);
+        processor.fail(context, e);
+        journal.record(context, InvoiceJournal.State.FAILED);
+        release(context);
+    }
+
+    /**
+     * Reprend une facture depuis son dernier point du journal (après un arrêt),
+     * sinon la traite depuis le début.
+     */
+    private Step resume(InvoiceContext context) {
+        InvoiceJournal.Checkpoint checkpoint = journal.checkpoint(context.getInvoiceNumber());
+        if (checkpoint == null) {
+            return Step.VALIDATE;
+        }
+
+        File signedFile = existingFile(checkpoint.signedFile());
+        File ttnFile = existingFile(checkpoint.ttnFile());
+
+        Step step = switch (checkpoint.state()) {
+            case SIGNED -> signedFile != null ? Step.SEND : Step.VALIDATE;
+            case SENDING -> signedFile != null ? Step.CONSULT : Step.VALIDATE;
+            // Déjà remise à TTN: consultée par numéro, jamais renvoyée
+            case SUBMITTED -> Step.CONSULT;
+            case CONSULTED, QR_DONE -> ttnFile != null ? Step.FINISH : Step.VALIDATE;
+            default -> Step.VALIDATE;
+        };
+
+        if (step != Step.VALIDATE) {
+            // Arrêt pendant saveEfact: TTN a pu enregistrer la facture sans que la réponse
+            // soit lue. On consulte (avec les délais habituels) avant tout renvoi.
+            context.setSubmissionUnconfirmed(checkpoint.state() == InvoiceJournal.State.SENDING);
+            context.setSignedFile(signedFile);
+            context.setTtnReference(checkpoint.ttnReference());
+            context.setTtnFile(ttnFile);
+            log.info("Reprise de {} depuis l'état {} (journal)", context.getInvoiceNumber(), checkpoint.state());
+        }
+        return step;
+    }
+
+    private File existingFile(String path) {
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        return file.exists() ? file : null;
+    }
+
+    private void release(InvoiceContext context) {
+        inFlight.remove(context.getInputFile().getAbsolutePath());
+    }
+
+    private void waitForFileStability(File file) {
+        // Fichier déjà ancien (ex: présent au démarrage): inutile d'attendre
+        if (System.currentTimeMillis() - file.lastModified() >= STABLE_AGE_MS) {
+            return;
+        }
+
+        long previousSize = -1;
+        long currentSize = file.length();
+        long startTime = System.currentTimeMillis();
+        long timeout = config.getWatcher().getFileStabilityTimeoutMs();
+
+        while (currentSize != previousSize &&
+                (System.currentTimeMillis() - startTime) < timeout) {
+            try {
+                Thread.sleep(500);
+                previousSize = currentSize;
+                currentSize = file.length();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // De l'amont vers l'aval pour laisser les factures en cours terminer
+        for (PipelineStage stage : stages.values()) {
+            stage.shutdown(SHUTDOWN_TIMEOUT_MS);
+        }
+        log.info("Pipeline factures arrêté");
+    }
+
+    private enum Step {
+        VALIDATE, SIGN, SEND, CONSULT, FINISH
+    }
+}
@@ -0,0 +1,196 @@
+package tn.facturation.ttn.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.lang.invoke.VarHandle;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chronologie des factures en mémoire: un événement par entrée en file, début et
+ * fin de chaque étape, dans un tampon circulaire de taille fixe.
+ *
+ * L'enregistrement ne fait ni allocation ni verrou ni écriture disque: des
+ * tableaux préalloués, un compteur atomique et une séquence publiée par case.
+ * Une lecture concurrente d'une case en cours d'écriture (ou écrasée entre-temps)
+ * est détectée par la séquence et ignorée. Les plus anciens événements sont
+ * écrasés quand le tampon est plein.
+ */
+@Slf4j
+@Component
+public class InvoiceTrace {
+
+    public enum Phase {
+        RECEIVED, ENQUEUED, STARTED, COMPLETED, ERROR, DONE, FAILED
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final long WRITING = -1;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong traceIds = new AtomicLong(System.currentTimeMillis() << 12);
+
+    // Séquence de l'événement présent dans chaque case (WRITING pendant l'écriture)
+    private final AtomicLongArray published;
+    private final long[] traceId;
+    private final long[] nanos;
+    private final String[] invoiceNumber;
+    private final String[] stage;
+    private final byte[] phase;
+
+    // Conversion System.nanoTime() → heure murale pour l'affichage
+    private final long originNanos = System.nanoTime();
+    private final long originMillis = System.currentTimeMillis();
+
+    public InvoiceTrace(AppProperties config) {
+        this.capacity = Integer.highestOneBit(Math.max(1024, config.getTrace().getCapacity()) - 1) << 1;
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, WRITING);
+        }
+        this.traceId = new long[capacity];
+        this.nanos = new long[capacity];
+        this.invoiceNumber = new String[capacity];
+        this.stage = new String[capacity];
+        this.phase = new byte[capacity];
+        log.info("Chronologie des factures: {} événements en mémoire", capacity);
+    }
+
+    public long newTraceId() {
+        return traceIds.incrementAndGet();
+    }
+
+    public void record(InvoiceContext context, String stageName, Phase eventPhase) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & mask);
+
+        published.set(slot, WRITING);
+        VarHandle.storeStoreFence();
+        traceId[slot] = context.getTraceId();
+        nanos[slot] = System.nanoTime();
+        invoiceNumber[slot] = context.getInvoiceNumber();
+        stage[slot] = stageName;
+        phase[slot] = (byte) eventPhase.ordinal();
+        published.set(slot, seq);
+    }
+
+    /**
+     * Chronologies (la plus récente en dernier) encore présentes dans le tampon
+     * pour cette facture; vide si elle n'y est plus.
+     */
+    public List<Map<String, Object>> timeline(String number) {
+        Map<Long, List<Event>> traces = new LinkedHashMap<>();
+        long end = sequence.get();
+        for (long seq = Math.max(0, end - capacity); seq < end; seq++) {
+            Event event = read(seq);
+            if (event != null && number.equals(event.invoiceNumber())) {
+                traces.computeIfAbsent(event.traceId(), id -> new ArrayList<>()).add(event);
+            }
+        }
+
+        List<Map<String, Object>> timelines = new ArrayList<>();
+        for (Map.Entry<Long, List<Event>> trace : traces.entrySet()) {
+            timelines.add(describe(trace.getKey(), trace.getValue()));
+        }
+        return timelines;
+    }
+
+    private Event read(long seq) {
+        int slot = (int) (seq & mask);
+        if (published.get(slot) != seq) {
+            return null;
+        }
+        Event event = new Event(traceId[slot], nanos[slot], invoiceNumber[slot], stage[slot], PHASES[phase[slot]]);
+        VarHandle.loadLoadFence();
+        // Case réécrite pendant la lecture: événement perdu
+        return published.get(slot) == seq ? event : null;
+    }
+
+    /**
+     * Regroupe les événements par passage dans une étape: attente avant la file
+     * (roue de consultation, nouvelle tentative), attente en file puis service.
+     */
+    private Map<String, Object> describe(long id, List<Event> events) {
+        Map<String, Object> timeline = new LinkedHashMap<>();
+        timeline.put("traceId", Long.toHexString(id));
+        timeline.put("invoiceNumber", events.get(0).invoiceNumber());
+
+        long firstNanos = events.get(0).nanos();
+        long lastNanos = firstNanos;
+        long previousEnd = firstNanos;
+        String outcome = "IN_PROGRESS";
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        List<Map<String, Object>> steps = new ArrayList<>();
+        Map<String, Object> current = null;
+        long enqueuedAt = 0;
+        long startedAt = 0;
+
+        for (Event event : events) {
+            lastNanos = event.nanos();
+            switch (event.phase()) {
+                case ENQUEUED -> {
+                    current = new LinkedHashMap<>();
+                    current.put("stage", event.stage());
+                    current.put("enqueuedAt", instant(event.nanos()));
+                    current.put("delayBeforeMs", millis(event.nanos() - previousEnd));
+                    steps.add(current);
+                    enqueuedAt = event.nanos();
+                }
+                case STARTED -> {
+                    if (current != null) {
+                        current.put("waitMs", millis(event.nanos() - enqueuedAt));
+                        totals.computeIfAbsent(event.stage(), s -> new long[2])[0] += event.nanos() - enqueuedAt;
+                    }
+                    startedAt = event.nanos();
+                }
+                case COMPLETED, ERROR -> {
+                    if (current != null) {
+                        current.put("serviceMs", millis(event.nanos() - startedAt));
+                        current.put("outcome", event.phase().name());
+                        totals.computeIfAbsent(event.stage(), s -> new long[2])[1] += event.nanos() - startedAt;
+                    }
+                    previousEnd = event.nanos();
+                    current = null;
+                }
+                case DONE, FAILED -> outcome = event.phase().name();
+                default -> previousEnd = event.nanos();
+            }
+        }
+
+        timeline.put("receivedAt", instant(firstNanos));
+        timeline.put("outcome", outcome);
+        timeline.put("elapsedMs", millis(("IN_PROGRESS".equals(outcome) ? System.nanoTime() : lastNanos) - firstNanos));
+
+        Map<String, Object> byStage = new LinkedHashMap<>();
+        totals.forEach((name, total) -> {
+            Map<String, Object> stageTotals = new LinkedHashMap<>();
+            stageTotals.put("waitMs", millis(total[0]));
+            stageTotals.put("serviceMs", millis(total[1]));
+            byStage.put(name, stageTotals);
+        });
+        timeline.put("totals", byStage);
+        timeline.put("steps", steps);
+        return timeline;
+    }
+
+    private String instant(long eventNanos) {
+        return Instant.ofEpochMilli(originMillis + (eventNanos - originNanos) / 1_000_000).toString();
+    }
+
+    private static double millis(long durationNanos) {
+        return Math.round(durationNanos / 10_000.0) / 100.0;
+    }
+
+    private record Event(long traceId, long nanos, String invoiceNumber, String stage, Phase phase) {
+    }
+}
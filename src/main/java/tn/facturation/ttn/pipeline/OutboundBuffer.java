@@ -0,0 +1,98 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.service.TtnCircuitBreaker;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tampon local des factures à envoyer pendant que le disjoncteur TTN est ouvert.
+ *
+ * Les factures y sont parquées au lieu d'échouer, puis relâchées à débit contrôlé
+ * (drain-per-second) dès que le disjoncteur laisse passer du trafic: d'abord un
+ * appel de test en semi-ouvert, puis le flux normal une fois refermé.
+ */
+@Slf4j
+@Component
+public class OutboundBuffer {
+
+    private final AppProperties.CircuitBreaker settings;
+    private final TtnCircuitBreaker circuitBreaker;
+    private final BlockingQueue<Runnable> parked;
+    private final ScheduledExecutorService drainer;
+
+    public OutboundBuffer(AppProperties config, TtnCircuitBreaker circuitBreaker, MeterRegistry meterRegistry) {
+        this.settings = config.getTtn().getCircuitBreaker();
+        this.circuitBreaker = circuitBreaker;
+        this.parked = new LinkedBlockingQueue<>(Math.max(1, settings.getBufferCapacity()));
+        this.drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ttn-buffer-drain");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("ttn.circuit.buffered", parked, BlockingQueue::size)
+                .description("Factures en attente locale (TTN indisponible)")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        long periodMs = Math.max(1, 1000 / Math.max(1, settings.getDrainPerSecond()));
+        drainer.scheduleAtFixedRate(this::drainOne, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Met une facture de côté jusqu'au rétablissement de TTN.
+     *
+     * @param resubmit remet la facture dans la file de son étape
+     * @return false si le tampon est plein
+     */
+    public boolean park(InvoiceContext context, Runnable resubmit) {
+        boolean accepted = parked.offer(resubmit);
+        if (accepted) {
+            log.debug("TTN indisponible, facture en attente locale: {} ({} en attente)",
+                    context.getInvoiceNumber(), parked.size());
+        } else {
+            log.error("Tampon local plein ({} factures): {}", parked.size(), context.getInvoiceNumber());
+        }
+        return accepted;
+    }
+
+    public int size() {
+        return parked.size();
+    }
+
+    private void drainOne() {
+        try {
+            if (parked.isEmpty() || !circuitBreaker.allowsTraffic()) {
+                return;
+            }
+            Runnable resubmit = parked.poll();
+            if (resubmit != null) {
+                resubmit.run();
+            }
+        } catch (Exception e) {
+            log.error("Erreur vidage tampon TTN: {}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Les factures parquées sont déjà signées et journalisées: reprises au démarrage
+        drainer.shutdownNow();
+        if (!parked.isEmpty()) {
+            log.info("{} facture(s) en attente locale à l'arrêt", parked.size());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Une étape du pipeline: une file bornée et un nombre fixe de workers.
+ *
+ * Quand la file est pleine, un worker d'une étape précédente est bloqué jusqu'à ce
+ * qu'une place se libère. Les autres appelants (suites de réponses TTN, écriture
+ * des fichiers signés, timers de reprise et de consultation, FileWatcher) ne
+ * doivent jamais attendre: leur facture passe dans un débordement, remis dans la
+ * file par les workers au fil des places libérées.
+ */
+@Slf4j
+public class PipelineStage {
+
+    @Getter
+    private final String name;
+    @Getter
+    private final int workers;
+    private final ThreadPoolExecutor executor;
+    private final Deque<Runnable> overflow = new ConcurrentLinkedDeque<>();
+    private final Timer waitTimer;
+    private final Timer serviceTimer;
+
+    public PipelineStage(String name, AppProperties.Stage stageConfig, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.workers = Math.max(1, stageConfig.getWorkers());
+        int capacity = Math.max(1, stageConfig.getQueueCapacity());
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(
+                workers,
+                workers,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                r -> new Worker(r, "facture-" + name + "-" + threadCount.incrementAndGet()),
+                this::onQueueFull
+        );
+        // Tous les workers existent avant qu'un débordement soit remis directement en file
+        executor.prestartAllCoreThreads();
+
+        this.waitTimer = Timer.builder("factures.pipeline.stage.wait")
+                .description("Temps d'attente en file par étape")
+                .tag("stage", name)
+                .register(meterRegistry);
+        this.serviceTimer = Timer.builder("factures.pipeline.stage.service")
+                .description("Temps de service par étape")
+                .tag("stage", name)
+                .register(meterRegistry);
+        Gauge.builder("factures.pipeline.stage.queue", executor, e -> e.getQueue().size())
+                .description("Factures en file par étape")
+                .tag("stage", name)
+                .register(meterRegistry);
+        Gauge.builder("factures.pipeline.stage.overflow", overflow, Deque::size)
+                .description("Factures en attente d'une place dans la file de l'étape")
+                .tag("stage", name)
+                .register(meterRegistry);
+        Gauge.builder("factures.pipeline.stage.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Workers occupés par étape")
+                .tag("stage", name)
+                .register(meterRegistry);
+
+        log.info("Étape {}: {} worker(s), file de {} place(s)", name, workers, capacity);
+    }
+
+    /**
+     * Met une tâche en file. Si la file est pleine, bloque un worker d'étape et
+     * place la tâche en débordement pour tout autre appelant.
+     *
+     * @throws RejectedExecutionException si l'étape est arrêtée
+     */
+    public void submit(Runnable task) {
+        long enqueuedAt = System.nanoTime();
+        executor.execute(() -> {
+            long startedAt = System.nanoTime();
+            waitTimer.record(startedAt - enqueuedAt, TimeUnit.NANOSECONDS);
+            try {
+                task.run();
+            } finally {
+                serviceTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                drainOverflow();
+            }
+        });
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getOverflowDepth() {
+        return overflow.size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("workers", workers);
+        info.put("active", getActiveCount());
+        info.put("queue", getQueueDepth());
+        info.put("overflow", getOverflowDepth());
+        info.put("processed", serviceTimer.count());
+        info.put("avgWaitMs", (long) waitTimer.mean(TimeUnit.MILLISECONDS));
+        info.put("avgServiceMs", (long) serviceTimer.mean(TimeUnit.MILLISECONDS));
+        info.put("maxServiceMs", (long) serviceTimer.max(TimeUnit.MILLISECONDS));
+        return info;
+    }
+
+    /**
+     * Arrête l'étape après avoir vidé sa file (ou à l'expiration du délai).
+     */
+    public void shutdown(long timeoutMs) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                log.warn("Arrêt forcé de l'étape {}: {} facture(s) en file", name,
+                        executor.getQueue().size() + overflow.size());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    private void onQueueFull(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Étape arrêtée");
+        }
+        if (!(Thread.currentThread() instanceof Worker)) {
+            overflow.addLast(task);
+            // Une place a pu se libérer entre-temps sans qu'aucun worker ne reprenne le débordement
+            drainOverflow();
+            return;
+        }
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrompu en attente de place dans la file");
+        }
+    }
+
+    /**
+     * Remet en file les tâches en débordement, dans l'ordre, tant qu'il y a de la place.
+     */
+    private void drainOverflow() {
+        Runnable task;
+        while ((task = overflow.pollFirst()) != null) {
+            if (!executor.getQueue().offer(task)) {
+                overflow.addFirst(task);
+                // File pleine: le worker qui libérera une place reprendra le débordement
+                if (executor.getQueue().remainingCapacity() == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Worker d'une étape: seul appelant autorisé à attendre une place en file. */
+    private static final class Worker extends Thread {
+
+        private Worker(Runnable task, String name) {
+            super(task, name);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nouvelles tentatives différées des appels TTN (app.retry.*).
+ *
+ * Le délai croît de façon exponentielle avec un jitter, et l'attente se fait dans
+ * un timer: aucun worker du pipeline n'est bloqué pendant ce temps. À l'échéance,
+ * la facture est simplement remise dans la file de son étape. Sert aussi à
+ * reporter une signature tant qu'aucun token n'est connecté.
+ */
+@Slf4j
+@Component
+public class RetryScheduler {
+
+    private final AppProperties config;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Counter retryCounter;
+
+    public RetryScheduler(AppProperties config, MeterRegistry meterRegistry) {
+        this.config = config;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ttn-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+
+        this.retryCounter = Counter.builder("factures.retry.scheduled")
+                .description("Nouvelles tentatives TTN programmées")
+                .register(meterRegistry);
+        Gauge.builder("factures.retry.pending", timer, t -> t.getQueue().size())
+                .description("Factures en attente de nouvelle tentative")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Programme une nouvelle tentative de {@code task} pour cette facture.
+     *
+     * @return false si le nombre maximal de tentatives est atteint
+     */
+    public boolean schedule(InvoiceContext context, Runnable task) {
+        int attempt = context.getAttempts() + 1;
+        if (attempt >= config.getRetry().getMaxAttempts() || timer.isShutdown()) {
+            return false;
+        }
+        context.setAttempts(attempt);
+
+        long delay = nextDelay(attempt);
+        log.warn("Nouvelle tentative {}/{} pour {} dans {} ms",
+                attempt + 1, config.getRetry().getMaxAttempts(), context.getInvoiceNumber(), delay);
+
+        timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        retryCounter.increment();
+        return true;
+    }
+
+    /**
+     * Remet {@code task} dans le timer après {@code delayMs}, sans consommer de
+     * tentative: attente d'une ressource locale, pas d'une panne TTN.
+     *
+     * @return false si le timer est arrêté
+     */
+    public boolean scheduleAfter(InvoiceContext context, long delayMs, Runnable task) {
+        if (timer.isShutdown()) {
+            return false;
+        }
+        log.debug("{} reprogrammée dans {} ms", context.getInvoiceNumber(), delayMs);
+        timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public int getPendingCount() {
+        return timer.getQueue().size();
+    }
+
+    /**
+     * delayMs x multiplier^(n-1), plafonné à maxDelayMs, puis tiré au hasard dans
+     * [délai/2, délai] pour éviter que toutes les factures repartent ensemble.
+     */
+    long nextDelay(int attempt) {
+        AppProperties.Retry retry = config.getRetry();
+        double exponential = retry.getDelayMs() * Math.pow(retry.getMultiplier(), attempt - 1);
+        long capped = (long) Math.min(exponential, retry.getMaxDelayMs());
+        long half = Math.max(1, capped / 2);
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Les factures en attente restent dans le journal et seront reprises au démarrage
+        int pending = timer.getQueue().size();
+        timer.shutdownNow();
+        if (pending > 0) {
+            log.info("{} nouvelle(s) tentative(s) abandonnée(s) à l'arrêt", pending);
+        }
+    }
+}
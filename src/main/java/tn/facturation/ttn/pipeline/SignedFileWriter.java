@@ -0,0 +1,92 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.service.InvoiceStepMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Écriture des XML signés en tâche de fond.
+ *
+ * Le XML signé part vers TTN depuis la mémoire; le fichier (référence locale,
+ * reprise après arrêt) est écrit par cette étape à part (app.pipeline.persist),
+ * sans occuper les workers sign. L'envoi attend que le fichier soit écrit: une
+ * facture n'est jamais remise à TTN sans sa copie signée locale. Le fichier est
+ * d'abord écrit à côté puis renommé: un fichier signé présent est toujours
+ * complet. S'il n'a pas pu être écrit avant un arrêt, la reprise repart de la
+ * validation.
+ */
+@Slf4j
+@Component
+public class SignedFileWriter {
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+
+    private final PipelineStage stage;
+    private final InvoiceStepMetrics stepMetrics;
+
+    public SignedFileWriter(AppProperties config, InvoiceStepMetrics stepMetrics, MeterRegistry meterRegistry) {
+        this.stage = new PipelineStage("persist", config.getPipeline().getPersist(), meterRegistry);
+        this.stepMetrics = stepMetrics;
+    }
+
+    /**
+     * Met l'écriture en file (bloque si la file est pleine).
+     *
+     * @return le fichier écrit, ou une erreur d'écriture
+     */
+    public CompletableFuture<File> write(String invoiceNumber, byte[] signedXml, File target) {
+        CompletableFuture<File> written = new CompletableFuture<>();
+        try {
+            stage.submit(() -> {
+                long startNanos = System.nanoTime();
+                try {
+                    writeAtomically(signedXml, target.toPath());
+                    stepMetrics.record(InvoiceStepMetrics.SIGNED_WRITE, InvoiceStepMetrics.SUCCESS, startNanos);
+                    log.debug("Fichier signé écrit: {}", target.getName());
+                    written.complete(target);
+                } catch (IOException e) {
+                    stepMetrics.record(InvoiceStepMetrics.SIGNED_WRITE, InvoiceStepMetrics.FAILURE, startNanos);
+                    log.error("Écriture du fichier signé impossible ({}): {}", invoiceNumber, e.getMessage(), e);
+                    written.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error("Fichier signé non écrit ({}): arrêt en cours", invoiceNumber);
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+    private static void writeAtomically(byte[] content, Path target) throws IOException {
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        try {
+            Files.write(partial, content);
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        return stage.snapshot();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Après le pipeline (qui dépend de cette étape): les derniers fichiers sont écrits
+        stage.shutdown(SHUTDOWN_TIMEOUT_MS);
+    }
+}
@@ -0,0 +1,167 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.service.FactureProcessorService;
+import tn.facturation.ttn.service.TtnEfact;
+import tn.facturation.ttn.service.TtnSoapClientService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Réconciliation groupée des factures envoyées à TTN (app.ttn.reconciliation.*).
+ *
+ * Quand beaucoup de copies TTN sont attendues (typiquement après une panne), une
+ * consultation par période et par page remplace une consultation par facture:
+ * les factures retournées qui sont en attente localement reçoivent leur XML signé
+ * et leur statut VALIDE_TTN, puis passent à l'étape finish. Les autres continuent
+ * d'être consultées individuellement par le {@link ConsultScheduler}.
+ *
+ * Les pages sont demandées l'une après l'autre de façon asynchrone: le thread de
+ * planification Spring (partagé avec le watcher et le test de santé TTN) rend la
+ * main dès la première requête partie. Une seule réconciliation à la fois.
+ *
+ * Désactivée par défaut: les critères de recherche par période (dateFrom, dateTo,
+ * pageNumber, pageSize) restent à confirmer sur le WSDL de TTN.
+ */
+@Slf4j
+@Component
+public class TtnReconciliationJob {
+
+    private final AppProperties config;
+    private final TtnSoapClientService ttnClient;
+    private final FactureProcessorService processor;
+    private final ConsultScheduler consultScheduler;
+    private final InvoicePipeline pipeline;
+    private final Counter matchedCounter;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public TtnReconciliationJob(AppProperties config, TtnSoapClientService ttnClient,
+                                FactureProcessorService processor, ConsultScheduler consultScheduler,
+                                InvoicePipeline pipeline, MeterRegistry meterRegistry) {
+        this.config = config;
+        this.ttnClient = ttnClient;
+        this.processor = processor;
+        this.consultScheduler = consultScheduler;
+        this.pipeline = pipeline;
+        this.matchedCounter = Counter.builder("factures.reconciliation.matched")
+                .description("Copies TTN obtenues par réconciliation groupée")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.ttn.reconciliation.interval-ms:300000}",
+            initialDelayString = "${app.ttn.reconciliation.interval-ms:300000}")
+    public void reconcile() {
+        AppProperties.Reconciliation settings = config.getTtn().getReconciliation();
+        if (!settings.isEnabled() || !config.getTtn().isEnabled()) {
+            return;
+        }
+
+        Set<String> pending = consultScheduler.pendingInvoices();
+        if (pending.size() < settings.getMinPending()) {
+            return;
+        }
+
+        if (!running.compareAndSet(false, true)) {
+            log.debug("Réconciliation TTN précédente encore en cours");
+            return;
+        }
+
+        LocalDate to = LocalDate.now();
+        LocalDate from = to.minusDays(settings.getLookbackDays());
+        Run run = new Run(from, to, Path.of(config.getFolders().getTtnSigned()), pending);
+
+        log.info("Réconciliation TTN: {} facture(s) en attente, période du {} au {}", pending.size(), from, to);
+        fetch(run, 1).whenComplete((ignored, error) -> {
+            running.set(false);
+            if (error != null) {
+                log.warn("Réconciliation TTN interrompue: {}", TtnSoapClientService.unwrap(error).getMessage());
+            }
+            log.info("Réconciliation TTN: {} copie(s) récupérée(s) en {} appel(s)", run.matched.get(), run.pages.get());
+        });
+    }
+
+    /**
+     * Demande une page puis enchaîne la suivante à l'arrivée de la réponse, tant que
+     * la page est pleine et que des factures attendent encore leur copie.
+     */
+    private CompletableFuture<Void> fetch(Run run, int page) {
+        AppProperties.Reconciliation settings = config.getTtn().getReconciliation();
+        CompletableFuture<Integer> response;
+        try {
+            response = ttnClient.consultEfactRangeAsync(run.from, run.to, page, settings.getPageSize(), run.workDir,
+                    efact -> {
+                        if (accept(efact, run.pending)) {
+                            run.matched.incrementAndGet();
+                        }
+                    });
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return response.thenCompose(count -> {
+            run.pages.set(page);
+            if (page >= settings.getMaxPages() || count < settings.getPageSize()
+                    || consultScheduler.getPendingCount() == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return fetch(run, page + 1);
+        });
+    }
+
+    /**
+     * Publie la copie si la facture est encore en attente, sinon supprime le fichier de travail.
+     */
+    private boolean accept(TtnEfact efact, Set<String> pending) {
+        InvoiceContext context = pending.contains(efact.documentNumber())
+                ? consultScheduler.claim(efact.documentNumber())
+                : null;
+        try {
+            if (context == null) {
+                Files.deleteIfExists(efact.xmlFile());
+                return false;
+            }
+            processor.acceptTtnCopy(context, efact.xmlFile());
+        } catch (IOException e) {
+            log.error("Copie TTN {} non enregistrée: {}", efact.documentNumber(), e.getMessage());
+            if (context != null) {
+                // Rendue à la consultation individuelle
+                pipeline.awaitTtnCopy(context);
+            }
+            return false;
+        }
+
+        matchedCounter.increment();
+        pipeline.reconciled(context);
+        return true;
+    }
+
+    /** État d'une réconciliation en cours. */
+    private static final class Run {
+
+        private final LocalDate from;
+        private final LocalDate to;
+        private final Path workDir;
+        private final Set<String> pending;
+        private final AtomicInteger matched = new AtomicInteger();
+        private final AtomicInteger pages = new AtomicInteger();
+
+        private Run(LocalDate from, LocalDate to, Path workDir, Set<String> pending) {
+            this.from = from;
+            this.to = to;
+            this.workDir = workDir;
+            this.pending = pending;
+        }
+    }
+}
@@ -6,13 +6,21 @@ import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
 import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.pipeline.InvoiceContext;
+import tn.facturation.ttn.pipeline.SignedFileWriter;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Service
@@ -21,9 +29,12 @@ public class FactureProcessorService {
     private final AppProperties config;
     private final XmlValidationService validationService;
     private final Pkcs11XmlSignatureService signatureService;
+    private final XmlSignatureService keyStoreSignatureService;
     private final TtnSoapClientService ttnClient;
     private final QrCodeService qrCodeService;
     private final StatusService statusService;
+    private final SignedFileWriter signedFileWriter;
+    private final InvoiceStepMetrics stepMetrics;
     private final MeterRegistry meterRegistry;
 
     private Counter successCounter;
@@ -34,17 +45,23 @@ public class FactureProcessorService {
             AppProperties config,
             XmlValidationService validationService,
             Pkcs11XmlSignatureService signatureService,
+            XmlSignatureService keyStoreSignatureService,
             TtnSoapClientService ttnClient,
             QrCodeService qrCodeService,
             StatusService statusService,
+            SignedFileWriter signedFileWriter,
+            InvoiceStepMetrics stepMetrics,
             MeterRegistry meterRegistry) {
 
         this.config = config;
         this.validationService = validationService;
         this.signatureService = signatureService;
+        this.keyStoreSignatureService = keyStoreSignatureService;
         this.ttnClient = ttnClient;
         this.qrCodeService = qrCodeService;
         this.statusService = statusService;
+        this.signedFileWriter = signedFileWriter;
+        this.stepMetrics = stepMetrics;
         this.meterRegistry = meterRegistry;
 
         initMetrics();
@@ -64,121 +81,233 @@ public class FactureProcessorService {
                 .register(meterRegistry);
     }
 
-    public void processInvoice(File inputFile) {
-        Timer.Sample sample = Timer.start(meterRegistry);
-        String invoiceNumber = extractInvoiceNumber(inputFile.getName());
+    public InvoiceContext newContext(File inputFile) {
+        return new InvoiceContext(inputFile, extractInvoiceNumber(inputFile.getName()));
+    }
 
-        log.info("Début traitement: {}", inputFile.getName());
+    public void validate(InvoiceContext context) throws Exception {
+        log.info("Début traitement: {} (trace {})",
+                context.getInputFile().getName(), Long.toHexString(context.getTraceId()));
+        File inputFile = context.getInputFile();
+        timed(context, InvoiceStepMetrics.VALIDATE, () -> {
+            context.setContent(Files.readAllBytes(inputFile.toPath()));
+            try {
+                context.setDocument(XmlDocuments.parse(context.getContent()));
+            } catch (Exception e) {
+                throw new InvoiceStepException("xml-malformed", "XML mal formé: " + e.getMessage(), e);
+            }
 
-        try {
             log.info("Validation XSD...");
-            if (!validationService.validate(inputFile)) {
-                throw new Exception("XML invalide selon schema XSD");
+            if (!validationService.validate(context.getDocument(), inputFile.getName())) {
+                throw new InvoiceStepException("xsd-invalid", "XML invalide selon schema XSD");
             }
+        });
+    }
 
-            log.info("Signature électronique...");
-            File signedFile = signFile(inputFile, invoiceNumber);
-            if (signedFile == null) {
-                throw new Exception("Échec signature");
-            }
-            statusService.updateStatus(invoiceNumber, "SIGNE", "Facture signée avec succès");
-
-            log.info("Envoi à TTN...");
-            File ttnResponseFile = null;
-            if (config.getTtn().isEnabled()) {
-                ttnResponseFile = sendToTtn(signedFile, invoiceNumber);
-                if (ttnResponseFile == null) {
-                    throw new Exception("Échec envoi TTN");
-                }
-                statusService.updateStatus(invoiceNumber, "VALIDE_TTN", "Validé par TTN");
-            } else {
-                log.warn("Mode TEST: Envoi TTN désactivé");
-                ttnResponseFile = signedFile;
-                statusService.updateStatus(invoiceNumber, "MODE_TEST", "Mode test - TTN non configuré");
+    /**
+     * Signe la facture en mémoire et lance l'écriture du fichier signé.
+     *
+     * @return le fichier signé une fois écrit, ou une {@link InvoiceStepException}
+     * "signed-write": l'envoi TTN attend que la référence locale existe
+     */
+    public CompletableFuture<File> sign(InvoiceContext context) throws Exception {
+        String invoiceNumber = context.getInvoiceNumber();
+        log.info("Signature électronique...");
+        timed(context, InvoiceStepMetrics.SIGN, () -> {
+            byte[] signedContent = signContent(context);
+            if (signedContent == null) {
+                throw new InvoiceStepException("signature", "Échec signature");
             }
+            context.setSignedContent(signedContent);
+            context.setSignedFile(signedFileFor(invoiceNumber));
+        });
+        // Écriture par l'étape persist: le worker sign passe à la facture suivante
+        CompletableFuture<File> written = signedFileWriter.write(
+                invoiceNumber, context.getSignedContent(), context.getSignedFile());
+        if (config.getTtn().isEnabled()) {
+            // Le QR code viendra du XML renvoyé par TTN: le source n'est plus utile
+            context.releaseContent();
+        }
+        statusService.updateStatus(invoiceNumber, "SIGNE", "Facture signée avec succès");
+        return written.exceptionally(error -> {
+            throw new CompletionException(new InvoiceStepException("signed-write",
+                    "Fichier signé non écrit: " + TtnSoapClientService.unwrap(error).getMessage(), error));
+        });
+    }
 
-            log.info("Génération QR code...");
-            boolean qrGenerated = generateQrCode(ttnResponseFile, invoiceNumber);
-            if (!qrGenerated) {
-                log.warn("Échec génération QR code (non bloquant)");
-            }
+    /**
+     * Envoi asynchrone à TTN (saveEfact). En mode test, termine immédiatement.
+     */
+    public CompletableFuture<Void> submitToTtn(InvoiceContext context) {
+        String invoiceNumber = context.getInvoiceNumber();
+        log.info("Envoi à TTN...");
+        context.setStage(InvoiceStepMetrics.SAVE_EFACT);
+        if (!config.getTtn().isEnabled()) {
+            log.warn("Mode TEST: Envoi TTN désactivé");
+            context.setTtnFile(context.getSignedFile());
+            context.releaseSignedContent();
+            statusService.updateStatus(invoiceNumber, "MODE_TEST", "Mode test - TTN non configuré");
+            return CompletableFuture.completedFuture(null);
+        }
 
-            if (config.getArchive().isAutoArchiveEnabled()) {
-                archiveInvoice(invoiceNumber, signedFile, ttnResponseFile);
-            }
+        long startNanos = System.nanoTime();
+        byte[] signedContent = context.getSignedContent();
+        CompletableFuture<String> sent = signedContent != null
+                ? ttnClient.saveEfactAsync(signedContent, invoiceNumber)
+                // Reprise après arrêt: seul le fichier signé subsiste
+                : ttnClient.saveEfactAsync(context.getSignedFile(), invoiceNumber);
+        return sent.whenComplete((ttnReference, error) ->
+                stepMetrics.record(InvoiceStepMetrics.SAVE_EFACT,
+                        error == null ? InvoiceStepMetrics.SUCCESS : InvoiceStepMetrics.FAILURE, startNanos)
+        ).thenAccept(ttnReference -> {
+            context.releaseSignedContent();
+            context.setTtnReference(ttnReference);
+            statusService.updateStatusWithTtnRef(invoiceNumber, "ENVOYE_TTN", ttnReference, "Envoyé à TTN");
+        });
+    }
 
-            if (inputFile.delete()) {
-                log.debug("Fichier source supprimé");
+    /**
+     * Récupération asynchrone du XML signé par TTN (consultEfact).
+     */
+    public CompletableFuture<Boolean> consultTtn(InvoiceContext context) {
+        String invoiceNumber = context.getInvoiceNumber();
+        context.setStage(InvoiceStepMetrics.CONSULT_EFACT);
+        long startNanos = System.nanoTime();
+        return ttnClient.consultEfactAsync(invoiceNumber, ttnFileFor(invoiceNumber)).whenComplete((ttnResponseFile, error) ->
+                stepMetrics.record(InvoiceStepMetrics.CONSULT_EFACT, error != null ? InvoiceStepMetrics.FAILURE
+                        : ttnResponseFile == null ? InvoiceStepMetrics.PENDING : InvoiceStepMetrics.SUCCESS, startNanos)
+        ).thenApply(ttnResponseFile -> {
+            if (ttnResponseFile == null) {
+                return false;
             }
+            context.setTtnFile(ttnResponseFile);
+            statusService.updateStatus(invoiceNumber, "VALIDE_TTN", "Validé par TTN");
+            return true;
+        });
+    }
 
-            successCounter.increment();
-            sample.stop(processingTimer);
+    /**
+     * Copie TTN obtenue par la réconciliation: publiée dans ttnSigned comme une
+     * consultation individuelle.
+     */
+    public void acceptTtnCopy(InvoiceContext context, Path copy) throws IOException {
+        File ttnFile = ttnFileFor(context.getInvoiceNumber());
+        Files.move(copy, ttnFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        context.setTtnFile(ttnFile);
+        statusService.updateStatus(context.getInvoiceNumber(), "VALIDE_TTN", "Validé par TTN (réconciliation)");
+    }
 
-            log.info("Traitement réussi: {}", invoiceNumber);
+    public void generateQr(InvoiceContext context) {
+        log.info("Génération QR code...");
+        context.setStage(InvoiceStepMetrics.QR);
+        long startNanos = System.nanoTime();
+        boolean qrGenerated = generateQrCode(context, context.getInvoiceNumber());
+        stepMetrics.record(InvoiceStepMetrics.QR,
+                qrGenerated ? InvoiceStepMetrics.SUCCESS : InvoiceStepMetrics.FAILURE, startNanos);
+        if (!qrGenerated) {
+            log.warn("Échec génération QR code (non bloquant)");
+        }
+    }
 
-        } catch (Exception e) {
-            failureCounter.increment();
-            sample.stop(processingTimer);
+    public void complete(InvoiceContext context) {
+        String invoiceNumber = context.getInvoiceNumber();
 
-            log.error("Échec traitement: {}", invoiceNumber, e);
+        if (config.getArchive().isAutoArchiveEnabled()) {
+            context.setStage(InvoiceStepMetrics.ARCHIVE);
+            long startNanos = System.nanoTime();
+            boolean archived = archiveInvoice(invoiceNumber, context.getSignedFile(), context.getTtnFile());
+            stepMetrics.record(InvoiceStepMetrics.ARCHIVE,
+                    archived ? InvoiceStepMetrics.SUCCESS : InvoiceStepMetrics.FAILURE, startNanos);
+        }
 
-            statusService.updateStatus(invoiceNumber, "ERREUR", e.getMessage());
-            moveToErrors(inputFile);
+        if (context.getInputFile().delete()) {
+            log.debug("Fichier source supprimé");
         }
+
+        successCounter.increment();
+        recordProcessingTime(context);
+
+        log.info("Traitement réussi: {}", invoiceNumber);
     }
 
-    private File signFile(File inputFile, String invoiceNumber) {
-        try {
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            File signedFile = new File(
-                    config.getFolders().getOutput(),
-                    invoiceNumber + "_signed_" + timestamp + ".xml"
-            );
+    public void fail(InvoiceContext context, Exception e) {
+        String invoiceNumber = context.getInvoiceNumber();
+
+        failureCounter.increment();
+        stepMetrics.recordFailure(context.getStage(), e);
+        recordProcessingTime(context);
+
+        log.error("Échec traitement: {}", invoiceNumber, e);
+
+        statusService.updateStatus(invoiceNumber, "ERREUR", e.getMessage());
+        moveToErrors(context.getInputFile());
+    }
 
-            boolean success = signatureService.signXmlFile(inputFile, signedFile);
-            return success ? signedFile : null;
+    private void recordProcessingTime(InvoiceContext context) {
+        processingTimer.record(System.nanoTime() - context.getStartNanos(), TimeUnit.NANOSECONDS);
+    }
 
+    /**
+     * Exécute une étape synchrone en mesurant sa durée (succès ou échec).
+     */
+    private void timed(InvoiceContext context, String step, StepAction action) throws Exception {
+        context.setStage(step);
+        long startNanos = System.nanoTime();
+        try {
+            action.run();
         } catch (Exception e) {
-            log.error("Erreur signature: {}", e.getMessage(), e);
-            return null;
+            stepMetrics.record(step, InvoiceStepMetrics.FAILURE, startNanos);
+            throw e;
         }
+        stepMetrics.record(step, InvoiceStepMetrics.SUCCESS, startNanos);
+    }
+
+    @FunctionalInterface
+    private interface StepAction {
+        void run() throws Exception;
     }
 
-    private File sendToTtn(File signedFile, String invoiceNumber) {
+    private byte[] signContent(InvoiceContext context) {
         try {
-            String ttnReference = ttnClient.saveEfact(signedFile, invoiceNumber);
-
-            if (ttnReference != null) {
-                File ttnFile = ttnClient.consultEfact(invoiceNumber);
-
-                if (ttnFile != null) {
-                    String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-                    File destination = new File(
-                            config.getFolders().getTtnSigned(),
-                            invoiceNumber + "_ttn_" + timestamp + ".xml"
-                    );
-                    Files.copy(ttnFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    return destination;
-                }
+            // Certificat logiciel: signature directe, en parallèle sur les workers sign
+            if (config.getCertificate().useKeyStore()) {
+                return keyStoreSignatureService.signXml(context.getContent());
             }
+            return signatureService.signXml(context.getContent(), context.getInputFile().getName());
 
-            return null;
-
+        } catch (SigningTokenUnavailableException e) {
+            // Pas un échec de la facture: le pipeline la reprogramme
+            throw e;
         } catch (Exception e) {
-            log.error("Erreur envoi TTN: {}", e.getMessage(), e);
+            log.error("Erreur signature: {}", e.getMessage(), e);
             return null;
         }
     }
 
-    private boolean generateQrCode(File xmlFile, String invoiceNumber) {
+    private File signedFileFor(String invoiceNumber) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        return new File(config.getFolders().getOutput(), invoiceNumber + "_signed_" + timestamp + ".xml");
+    }
+
+    private File ttnFileFor(String invoiceNumber) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        return new File(config.getFolders().getTtnSigned(), invoiceNumber + "_ttn_" + timestamp + ".xml");
+    }
+
+    private boolean generateQrCode(InvoiceContext context, String invoiceNumber) {
         try {
+            // Mode test: le document source parsé contient déjà les données du QR
+            Document doc = context.getDocument() != null
+                    ? context.getDocument()
+                    : XmlDocuments.parse(context.getTtnFile());
+
             String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
             File qrFile = new File(
                     config.getFolders().getQrcode(),
                     invoiceNumber + "_qr_" + timestamp + ".png"
             );
 
-            return qrCodeService.generateQrCode(xmlFile, qrFile);
+            return qrCodeService.generateQrCode(doc, qrFile);
 
         } catch (Exception e) {
             log.error("Erreur génération QR: {}", e.getMessage(), e);
@@ -186,7 +315,7 @@ public class FactureProcessorService {
         }
     }
 
-    private void archiveInvoice(String invoiceNumber, File signedFile, File ttnFile) {
+    private boolean archiveInvoice(String invoiceNumber, File signedFile, File ttnFile) {
         try {
             String yearMonth = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy/MM"));
             File archiveDir = new File(config.getFolders().getArchive(), yearMonth);
@@ -195,9 +324,11 @@ public class FactureProcessorService {
             File archiveFile = new File(archiveDir, invoiceNumber + "_archive.zip");
 
             log.debug("Facture archivée: {}", archiveFile.getName());
+            return true;
 
         } catch (Exception e) {
             log.error("Erreur archivage: {}", e.getMessage());
+            return false;
         }
     }
 
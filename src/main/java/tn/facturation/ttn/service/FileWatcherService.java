@@ -7,6 +7,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import tn.facturation.ttn.config.AppProperties;
+import tn.facturation.ttn.pipeline.InvoicePipeline;
 
 import java.io.File;
 import java.io.IOException;
@@ -19,7 +20,7 @@ import java.util.concurrent.TimeUnit;
 public class FileWatcherService {
 
     private final AppProperties config;
-    private final FactureProcessorService processor;
+    private final InvoicePipeline pipeline;
 
     private WatchService watchService;
     private volatile boolean running = false;
@@ -53,7 +54,7 @@ public class FileWatcherService {
         if (files != null && files.length > 0) {
             log.info("Traitement de {} fichier(s) existant(s)", files.length);
             for (File file : files) {
-                processor.processInvoice(file);
+                pipeline.submit(file);
             }
         }
     }
@@ -88,6 +89,9 @@ public class FileWatcherService {
 
                 for (WatchEvent<?> event : key.pollEvents()) {
                     if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Événements perdus (rafale de fichiers): on rescanne le dossier
+                        log.warn("Débordement FileWatcher, rescan du dossier d'entrée");
+                        processExistingFiles();
                         continue;
                     }
 
@@ -97,8 +101,7 @@ public class FileWatcherService {
 
                     if (filename.toString().toLowerCase().endsWith(".xml")) {
                         File file = new File(config.getFolders().getInput(), filename.toString());
-                        waitForFileStability(file);
-                        processor.processInvoice(file);
+                        pipeline.submit(file);
                     }
                 }
 
@@ -113,25 +116,6 @@ public class FileWatcherService {
         }
     }
 
-    private void waitForFileStability(File file) {
-        long previousSize = -1;
-        long currentSize = file.length();
-        long startTime = System.currentTimeMillis();
-        long timeout = config.getWatcher().getFileStabilityTimeoutMs();
-
-        while (currentSize != previousSize &&
-                (System.currentTimeMillis() - startTime) < timeout) {
-            try {
-                Thread.sleep(500);
-                previousSize = currentSize;
-                currentSize = file.length();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
-        }
-    }
-
     @Scheduled(fixedDelayString = "${app.watcher.interval-seconds}000", initialDelay = 60000)
     public void checkPendingFiles() {
         File inputDir = new File(config.getFolders().getInput());
@@ -139,6 +123,11 @@ public class FileWatcherService {
 
         if (files != null && files.length > 0) {
             log.debug("Vérification: {} fichier(s) en attente", files.length);
+            for (File file : files) {
+                if (!pipeline.isInFlight(file)) {
+                    pipeline.submit(file);
+                }
+            }
         }
     }
 
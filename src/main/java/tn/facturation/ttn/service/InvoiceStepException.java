@@ -0,0 +1,25 @@
+package tn.facturation.ttn.service;
+
+import lombok.Getter;
+
+/**
+ * Rejet d'une facture par une étape locale (XML, XSD, signature...).
+ *
+ * {@code reason} est une valeur courte et stable, utilisée comme tag de la
+ * métrique d'échecs; le message reste celui écrit dans le fichier de statut.
+ */
+@Getter
+public class InvoiceStepException extends Exception {
+
+    private final String reason;
+
+    public InvoiceStepException(String reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public InvoiceStepException(String reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+}
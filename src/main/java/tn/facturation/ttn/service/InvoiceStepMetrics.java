@@ -0,0 +1,141 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Temps passé par une facture dans chaque étape de traitement.
+ *
+ * {@code factures.step.time} (tags step, outcome) publie un histogramme de
+ * percentiles agrégeable côté serveur et les p50/p95/p99 calculés localement;
+ * {@code factures.step.failures} (tags stage, cause) compte les échecs définitifs
+ * par étape et par cause, avec un nombre de valeurs borné.
+ */
+@Component
+public class InvoiceStepMetrics {
+
+    public static final String VALIDATE = "validate";
+    public static final String SIGN = "sign";
+    public static final String SAVE_EFACT = "saveEfact";
+    public static final String CONSULT_EFACT = "consultEfact";
+    public static final String QR = "qr";
+    public static final String ARCHIVE = "archive";
+    public static final String STATUS_WRITE = "status-write";
+    public static final String SIGNED_WRITE = "signed-write";
+
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+    // Consultation TTN sans copie signée disponible: une nouvelle sera faite plus tard
+    public static final String PENDING = "pending";
+
+    private static final List<String> STEPS = List.of(
+            VALIDATE, SIGN, SAVE_EFACT, CONSULT_EFACT, QR, ARCHIVE, STATUS_WRITE, SIGNED_WRITE);
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private final MeterRegistry meterRegistry;
+
+    public InvoiceStepMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        // Les timers de succès existent dès le démarrage: /api/metrics liste toutes les étapes
+        for (String step : STEPS) {
+            timer(step, SUCCESS);
+        }
+    }
+
+    public void record(String step, String outcome, long startNanos) {
+        timer(step, outcome).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordFailure(String stage, Exception e) {
+        Counter.builder("factures.step.failures")
+                .description("Échecs définitifs par étape et par cause")
+                .tag("stage", stage != null ? stage : "pipeline")
+                .tag("cause", causeOf(e))
+                .register(meterRegistry)
+                .increment();
+    }
+
+    /**
+     * Détail par étape pour /api/metrics: nombre d'appels, moyenne, max et
+     * percentiles (ms) par résultat, puis échecs par cause.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> steps = new LinkedHashMap<>();
+        for (String step : STEPS) {
+            Map<String, Object> outcomes = new LinkedHashMap<>();
+            for (Timer timer : meterRegistry.find("factures.step.time").tag("step", step).timers()) {
+                outcomes.put(timer.getId().getTag("outcome"), timerStats(timer));
+            }
+            Map<String, Object> failures = new LinkedHashMap<>();
+            for (Counter counter : meterRegistry.find("factures.step.failures").tag("stage", step).counters()) {
+                failures.put(counter.getId().getTag("cause"), (long) counter.count());
+            }
+            Map<String, Object> stats = new LinkedHashMap<>(outcomes);
+            stats.put("failures", failures);
+            steps.put(step, stats);
+        }
+        return steps;
+    }
+
+    private Map<String, Object> timerStats(Timer timer) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("count", snapshot.count());
+        stats.put("meanMs", round(snapshot.mean(TimeUnit.MILLISECONDS)));
+        stats.put("maxMs", round(snapshot.max(TimeUnit.MILLISECONDS)));
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            stats.put("p" + Math.round(percentile.percentile() * 100) + "Ms",
+                    round(percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        return stats;
+    }
+
+    private Timer timer(String step, String outcome) {
+        return Timer.builder("factures.step.time")
+                .description("Temps par étape de traitement d'une facture")
+                .tag("step", step)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .publishPercentiles(PERCENTILES)
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(2))
+                .register(meterRegistry);
+    }
+
+    /**
+     * Cause d'un échec, réduite à quelques valeurs pour ne pas multiplier les séries.
+     */
+    static String causeOf(Exception e) {
+        if (e instanceof InvoiceStepException stepException) {
+            return stepException.getReason();
+        }
+        if (e instanceof SigningTokenUnavailableException) {
+            return "signature-token-unavailable";
+        }
+        if (e instanceof TtnCircuitOpenException) {
+            return "ttn-circuit-open";
+        }
+        if (e instanceof TtnException ttnException) {
+            return ttnException.isRetryable() ? "ttn-unavailable" : "ttn-rejected";
+        }
+        if (e instanceof IOException || e.getCause() instanceof IOException) {
+            return "io";
+        }
+        return "unexpected";
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -1,17 +1,18 @@
 package tn.facturation.ttn.service;
 
-import eu.europa.esig.dss.enumerations.DigestAlgorithm;
-import eu.europa.esig.dss.enumerations.SignatureLevel;
-import eu.europa.esig.dss.enumerations.SignaturePackaging;
 import eu.europa.esig.dss.model.DSSDocument;
 import eu.europa.esig.dss.model.FileDocument;
+import eu.europa.esig.dss.model.InMemoryDocument;
 import eu.europa.esig.dss.model.SignatureValue;
 import eu.europa.esig.dss.model.ToBeSigned;
+import eu.europa.esig.dss.spi.DSSUtils;
 import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
 import eu.europa.esig.dss.token.Pkcs11SignatureToken;
+import eu.europa.esig.dss.token.SignatureTokenConnection;
 import eu.europa.esig.dss.validation.CommonCertificateVerifier;
 import eu.europa.esig.dss.xades.XAdESSignatureParameters;
 import eu.europa.esig.dss.xades.signature.XAdESService;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import tn.facturation.ttn.config.AppProperties;
@@ -20,27 +21,56 @@ import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Signature XAdES des factures avec un ou plusieurs tokens SafeNet.
+ *
+ * Chaque token (ou slot) configuré dans app.certificate.pkcs11.tokens est une
+ * session du pool ({@link SigningToken}); chaque signature part sur le token
+ * disponible le moins chargé et, si le token échoue, est refaite sur un autre.
+ *
+ * Un token perdu (ou absent au démarrage) est reconnecté en tâche de fond par
+ * {@link SigningTokenSupervisor}. Tant qu'aucun token n'est connecté, la
+ * signature est refusée par {@link SigningTokenUnavailableException}: le pipeline
+ * reprogramme la facture au lieu d'occuper un worker sign.
+ */
 @Slf4j
 @Service
 public class Pkcs11XmlSignatureService {
 
     private final AppProperties config;
+    private final MeterRegistry meterRegistry;
 
-    private Pkcs11SignatureToken token;
-    private DSSPrivateKeyEntry privateKey;
+    private final List<SigningToken> tokens = new CopyOnWriteArrayList<>();
+    private final SigningTokenSupervisor supervisor;
     private XAdESService xadesService;
-    private boolean initialized = false;
+    private volatile boolean initialized = false;
 
-    public Pkcs11XmlSignatureService(AppProperties config) {
+    public Pkcs11XmlSignatureService(AppProperties config, MeterRegistry meterRegistry) {
         this.config = config;
+        this.meterRegistry = meterRegistry;
+
+        this.supervisor = new SigningTokenSupervisor(config.getCertificate().getPkcs11().getReconnect());
     }
 
 
     @PostConstruct
     public void init() {
+        if (config.getCertificate().useKeyStore()) {
+            log.info("Signature par certificat logiciel ({}): tokens PKCS#11 non ouverts",
+                    config.getCertificate().getPath());
+            return;
+        }
         log.info("═══════════════════════════════════════════════════════════");
         log.info("  Initialisation du service de signature PKCS#11 (Token SafeNet)");
         log.info("═══════════════════════════════════════════════════════════");
@@ -49,6 +79,20 @@ public class Pkcs11XmlSignatureService {
 
 
     public boolean signXmlFile(File inputFile, File outputFile) {
+        return save(signDocument(new FileDocument(inputFile)), outputFile);
+    }
+
+    /**
+     * Signe un contenu XML en mémoire et retourne le XML signé, sans passer par le
+     * disque: l'appelant l'envoie directement à TTN et l'enregistre à part.
+     *
+     * @return le XML signé, ou null en cas d'échec (détail dans les logs)
+     */
+    public byte[] signXml(byte[] content, String documentName) {
+        return signDocument(new InMemoryDocument(content, documentName));
+    }
+
+    private byte[] signDocument(DSSDocument documentToSign) {
         // Vérifier que le token est initialisé
         if (!initialized) {
             log.error("═══════════════════════════════════════════════════════════");
@@ -63,56 +107,40 @@ public class Pkcs11XmlSignatureService {
             log.error("  • PIN incorrect");
             log.error("  • Certificat expiré ou non présent sur le token");
             log.error("═══════════════════════════════════════════════════════════");
-            return false;
+            return null;
         }
 
         try {
             log.info("┌─────────────────────────────────────────────────────────");
-            log.info("│ Signature du fichier: {}", inputFile.getName());
+            log.info("│ Signature du fichier: {}", documentToSign.getName());
             log.info("└─────────────────────────────────────────────────────────");
 
-            DSSDocument documentToSign = new FileDocument(inputFile);
-            log.debug("  1. Document chargé: {} bytes", inputFile.length());
-
-            XAdESSignatureParameters parameters = createTTNSignatureParameters();
-            log.debug("  2. Paramètres XAdES configurés (Level: {}, Digest: {})",
-                    parameters.getSignatureLevel(), parameters.getDigestAlgorithm());
-
-            ToBeSigned dataToSign = xadesService.getDataToSign(documentToSign, parameters);
-            log.debug("  3. Données à signer préparées");
+            log.debug("  1. Document chargé: {}", documentToSign.getName());
 
-            SignatureValue signatureValue = token.sign(
-                    dataToSign,
-                    parameters.getDigestAlgorithm(),
-                    privateKey
-            );
-            log.debug("  4. Signature effectuée avec le token SafeNet");
-
-
-            DSSDocument signedDocument = xadesService.signDocument(
-                    documentToSign,
-                    parameters,
-                    signatureValue
-            );
+            DSSDocument signedDocument = signWithPool(documentToSign);
             log.debug("  5. Document XML signé créé");
 
-
-            signedDocument.save(outputFile.getAbsolutePath());
-            log.debug("  6. Document sauvegardé: {} bytes", outputFile.length());
+            // DSS produit le XML signé en mémoire: pas de copie dans ce cas
+            byte[] signed = signedDocument instanceof InMemoryDocument inMemory
+                    ? inMemory.getBytes()
+                    : DSSUtils.toByteArray(signedDocument);
 
             log.info("┌─────────────────────────────────────────────────────────");
             log.info("│ ✓ SIGNATURE RÉUSSIE");
-            log.info("│ Fichier: {}", outputFile.getName());
-            log.info("│ Taille: {} bytes", outputFile.length());
+            log.info("│ Fichier: {}", documentToSign.getName());
+            log.info("│ Taille: {} bytes", signed.length);
             log.info("└─────────────────────────────────────────────────────────");
 
-            return true;
+            return signed;
 
+        } catch (SigningTokenUnavailableException e) {
+            log.warn("Aucun token connecté: signature de {} reportée", documentToSign.getName());
+            throw e;
         } catch (Exception e) {
             log.error("═══════════════════════════════════════════════════════════");
             log.error("  ❌ ERREUR DE SIGNATURE");
             log.error("═══════════════════════════════════════════════════════════");
-            log.error("Fichier: {}", inputFile.getName());
+            log.error("Fichier: {}", documentToSign.getName());
             log.error("Erreur: {}", e.getMessage(), e);
             log.error("");
             log.error("Causes possibles:");
@@ -122,44 +150,224 @@ public class Pkcs11XmlSignatureService {
             log.error("  • Certificat révoqué");
             log.error("═══════════════════════════════════════════════════════════");
 
-            return false;
+            return null;
         }
     }
 
+    private boolean save(byte[] signed, File outputFile) {
+        if (signed == null) {
+            return false;
+        }
+        try {
+            Files.write(outputFile.toPath(), signed);
+            log.debug("  6. Document sauvegardé: {}", outputFile.getName());
+            return true;
+        } catch (IOException e) {
+            log.error("Erreur écriture du fichier signé {}: {}", outputFile.getName(), e.getMessage(), e);
+            return false;
+        }
+    }
 
-    private XAdESSignatureParameters createTTNSignatureParameters() {
-        XAdESSignatureParameters parameters = new XAdESSignatureParameters();
-
-
-        parameters.setSignatureLevel(SignatureLevel.XAdES_BASELINE_B);
 
-        parameters.setSignaturePackaging(SignaturePackaging.ENVELOPED);
+    /**
+     * Signe sur le token connecté le moins chargé. Un échec du token (et non du
+     * document) fait refaire la signature sur un autre token connecté.
+     *
+     * @throws SigningTokenUnavailableException si aucun token n'est connecté
+     */
+    private DSSDocument signWithPool(DSSDocument documentToSign) {
+        int maxAttempts = tokens.size() * Math.max(1, config.getCertificate().getPkcs11().getFailureThreshold()) + 1;
+        RuntimeException lastFailure = null;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            SigningToken token = acquireLeastBusy();
+            if (token == null) {
+                throw new SigningTokenUnavailableException();
+            }
 
-        parameters.setDigestAlgorithm(DigestAlgorithm.SHA256);
+            XAdESSignatureParameters parameters;
+            SignatureValue signatureValue;
+            try {
+                SigningProfile profile = token.getProfile();
+                parameters = profile.newParameters();
+                log.debug("  2. Paramètres XAdES configurés (Level: {}, Digest: {})",
+                        parameters.getSignatureLevel(), parameters.getDigestAlgorithm());
+
+                ToBeSigned dataToSign = xadesService.getDataToSign(documentToSign, parameters);
+                log.debug("  3. Données à signer préparées");
+
+                signatureValue = token.sign(dataToSign, profile);
+            } catch (SigningToken.TokenFailureException e) {
+                log.warn("Échec du token {} ({}), nouvel essai (tentative {}/{})",
+                        token.getName(), e.getMessage(), attempt, maxAttempts);
+                if (!token.isAvailable()) {
+                    supervisor.reconnect(token);
+                }
+                lastFailure = e;
+                continue;
+            } finally {
+                token.release();
+            }
+            log.debug("  4. Signature effectuée avec le token {}", token.getName());
 
-        parameters.setSigningCertificate(privateKey.getCertificate());
-        parameters.setCertificateChain(privateKey.getCertificateChain());
+            return xadesService.signDocument(documentToSign, parameters, signatureValue);
+        }
 
-        return parameters;
+        throw lastFailure;
     }
 
+    /**
+     * Token connecté avec le moins de signatures en cours ou en attente; à égalité,
+     * celui qui a le moins signé. La réservation est faite sous verrou pour que des
+     * signatures simultanées se répartissent sur les tokens libres.
+     */
+    private synchronized SigningToken acquireLeastBusy() {
+        SigningToken best = null;
+        for (SigningToken token : tokens) {
+            if (!token.isAvailable()) {
+                continue;
+            }
+            if (best == null || token.getInFlight() < best.getInFlight()
+                    || (token.getInFlight() == best.getInFlight() && token.getSignedCount() < best.getSignedCount())) {
+                best = token;
+            }
+        }
+        if (best != null) {
+            best.acquire();
+        }
+        return best;
+    }
 
     private synchronized boolean ensureInitialized() {
         if (initialized) {
             return true;
         }
 
-        try {
-            log.info("");
-            log.info("Étape 1/6: Lecture de la configuration...");
-            String library = config.getCertificate().getPkcs11().getLibrary();
-            String pin = config.getCertificate().getPkcs11().getPin();
-            int slotIndex = config.getCertificate().getPkcs11().getSlotIndex();
+        tokens.addAll(openTokens());
+        if (tokens.isEmpty()) {
+            return false;
+        }
+        supervisor.watch(tokens);
+
+        log.info("");
+        log.info("Étape 6/6: Initialisation du service XAdES...");
+        CommonCertificateVerifier verifier = new CommonCertificateVerifier();
+        xadesService = new XAdESService(verifier);
+        log.info("  ✓ Service XAdES prêt");
 
-            log.info("  • Bibliothèque PKCS#11: {}", library);
-            log.info("  • Slot index: {}", slotIndex);
-            log.info("  ✓ Configuration lue");
+        initialized = true;
+
+        if (!isReady()) {
+            log.warn("Aucun token connecté: reconnexion en tâche de fond, les signatures seront reportées");
+            return true;
+        }
+
+        log.info("");
+        log.info("═══════════════════════════════════════════════════════════");
+        log.info("  ✓✓✓ SERVICE DE SIGNATURE OPÉRATIONNEL ✓✓✓");
+        log.info("  {} token(s) connecté(s) sur {} dans le pool de signature",
+                tokens.stream().filter(SigningToken::isAvailable).count(), tokens.size());
+        log.info("═══════════════════════════════════════════════════════════");
+        log.info("");
+
+        return true;
+    }
+
+    /**
+     * Sessions du pool, une par token configuré. Un token impossible à ouvrir reste
+     * dans le pool, déconnecté: le superviseur le reconnectera.
+     */
+    protected List<SigningToken> openTokens() {
+        log.info("");
+        log.info("Étape 1/6: Lecture de la configuration...");
+        List<AppProperties.Pkcs11Token> tokenConfigs = tokenConfigs();
+        for (AppProperties.Pkcs11Token tokenConfig : tokenConfigs) {
+            log.info("  • Token {}: bibliothèque {}, slot index {}",
+                    tokenConfig.getName(), tokenConfig.getLibrary(), tokenConfig.getSlotIndex());
+        }
+        log.info("  ✓ Configuration lue ({} token(s))", tokenConfigs.size());
+
+        List<SigningToken> pool = new ArrayList<>();
+        int opened = 0;
+        for (AppProperties.Pkcs11Token tokenConfig : tokenConfigs) {
+            SigningToken token = newToken(tokenConfig.getName(), () -> connectPkcs11(tokenConfig));
+            if (openToken(tokenConfig, token)) {
+                opened++;
+            }
+            pool.add(token);
+        }
+        if (opened > 0 && opened < tokenConfigs.size()) {
+            log.warn("Seulement {} token(s) sur {} ouvert(s): signature sur les tokens disponibles",
+                    opened, tokenConfigs.size());
+        }
+        return pool;
+    }
+
+    protected SigningToken newToken(String name, SigningToken.Connector connector) {
+        return new SigningToken(name, connector, config.getCertificate().getPkcs11().getFailureThreshold(), meterRegistry);
+    }
+
+    /**
+     * Ouverture silencieuse d'un token (reconnexions): mêmes vérifications que
+     * {@link #openToken}, sans le diagnostic détaillé du démarrage.
+     */
+    private SignatureTokenConnection connectPkcs11(AppProperties.Pkcs11Token tokenConfig) {
+        String library = tokenConfig.getLibrary();
+        String pin = tokenConfig.getPin();
+        if (!new File(library).exists()) {
+            throw new IllegalStateException("pilote PKCS#11 introuvable: " + library);
+        }
+        if (pin == null || pin.trim().isEmpty()) {
+            throw new IllegalStateException("PIN non configuré");
+        }
+        return new Pkcs11SignatureToken(library, () -> pin.toCharArray(), tokenConfig.getSlotIndex());
+    }
+
+    /**
+     * Tokens configurés, complétés par les valeurs par défaut de app.certificate.pkcs11
+     * (un seul token sur slotIndex si la liste est vide). Les noms sont uniques: ils
+     * servent de tag aux métriques.
+     */
+    private List<AppProperties.Pkcs11Token> tokenConfigs() {
+        AppProperties.Pkcs11 pkcs11 = config.getCertificate().getPkcs11();
+        List<AppProperties.Pkcs11Token> configured = pkcs11.getTokens();
+        if (configured.isEmpty()) {
+            AppProperties.Pkcs11Token single = new AppProperties.Pkcs11Token();
+            single.setSlotIndex(pkcs11.getSlotIndex());
+            configured = List.of(single);
+        }
+
+        List<AppProperties.Pkcs11Token> resolved = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (AppProperties.Pkcs11Token token : configured) {
+            AppProperties.Pkcs11Token copy = new AppProperties.Pkcs11Token();
+            copy.setLibrary(token.getLibrary() != null ? token.getLibrary() : pkcs11.getLibrary());
+            copy.setPin(token.getPin() != null ? token.getPin() : pkcs11.getPin());
+            copy.setSlotIndex(token.getSlotIndex());
+            String name = token.getName() != null ? token.getName() : "slot-" + token.getSlotIndex();
+            String unique = name;
+            for (int i = 2; !names.add(unique); i++) {
+                unique = name + "-" + i;
+            }
+            copy.setName(unique);
+            resolved.add(copy);
+        }
+        return resolved;
+    }
+
+    /**
+     * Première ouverture du token, avec diagnostic détaillé en cas d'échec.
+     *
+     * @return false si le token n'a pas pu être ouvert
+     */
+    private boolean openToken(AppProperties.Pkcs11Token tokenConfig, SigningToken token) {
+        try {
+            String library = tokenConfig.getLibrary();
+            String pin = tokenConfig.getPin();
+            int slotIndex = tokenConfig.getSlotIndex();
 
+            log.info("");
+            log.info("Token {}:", tokenConfig.getName());
             log.info("");
             log.info("Étape 2/6: Vérification du pilote SafeNet...");
             File dllFile = new File(library);
@@ -209,7 +417,7 @@ public class Pkcs11XmlSignatureService {
 
             log.info("");
             log.info("Étape 4/6: Connexion au token SafeNet...");
-            token = new Pkcs11SignatureToken(
+            Pkcs11SignatureToken connection = new Pkcs11SignatureToken(
                     library,
                     () -> pin.toCharArray(),
                     slotIndex
@@ -218,7 +426,7 @@ public class Pkcs11XmlSignatureService {
 
             log.info("");
             log.info("Étape 5/6: Recherche du certificat...");
-            List<DSSPrivateKeyEntry> keys = token.getKeys();
+            List<DSSPrivateKeyEntry> keys = connection.getKeys();
             if (keys == null || keys.isEmpty()) {
                 log.error("");
                 log.error("═══════════════════════════════════════════════════════════");
@@ -240,13 +448,14 @@ public class Pkcs11XmlSignatureService {
                 log.error("     → Essayer de signer un fichier XML de test");
                 log.error("     → Si TunSign fonctionne, le problème vient de la config Java");
                 log.error("═══════════════════════════════════════════════════════════");
+                connection.close();
                 return false;
             }
 
             log.info("  ✓ {} clé(s) trouvée(s) sur le token", keys.size());
 
 
-            privateKey = keys.get(0);
+            DSSPrivateKeyEntry privateKey = keys.get(0);
 
 
             log.info("");
@@ -260,20 +469,7 @@ public class Pkcs11XmlSignatureService {
             log.info("└─────────────────────────────────────────────────────────");
 
 
-            log.info("");
-            log.info("Étape 6/6: Initialisation du service XAdES...");
-            CommonCertificateVerifier verifier = new CommonCertificateVerifier();
-            xadesService = new XAdESService(verifier);
-            log.info("  ✓ Service XAdES prêt");
-
-            initialized = true;
-
-            log.info("");
-            log.info("═══════════════════════════════════════════════════════════");
-            log.info("  ✓✓✓ SERVICE DE SIGNATURE OPÉRATIONNEL ✓✓✓");
-            log.info("═══════════════════════════════════════════════════════════");
-            log.info("");
-
+            token.attach(connection, privateKey);
             return true;
 
         } catch (Exception e) {
@@ -304,32 +500,54 @@ public class Pkcs11XmlSignatureService {
 
     @PreDestroy
     public void cleanup() {
-        if (token != null) {
+        initialized = false;
+        supervisor.shutdown();
+        for (SigningToken token : tokens) {
             token.close();
             log.info("═══════════════════════════════════════════════════════════");
-            log.info("  ✓ Token PKCS#11 fermé proprement");
+            log.info("  ✓ Token PKCS#11 {} fermé proprement", token.getName());
             log.info("═══════════════════════════════════════════════════════════");
         }
-        initialized = false;
+        tokens.clear();
     }
 
 
     public boolean isReady() {
-        return initialized && token != null && privateKey != null && xadesService != null;
+        return initialized && xadesService != null && tokens.stream().anyMatch(SigningToken::isAvailable);
     }
 
 
     public String getCertificateInfo() {
-        if (!initialized || privateKey == null) {
+        if (!initialized || tokens.isEmpty()) {
             return "Service PKCS#11 non initialisé - Token SafeNet non disponible";
         }
 
-        return String.format("Certificat: %s | Valide jusqu'au: %s",
-                privateKey.getCertificate().getSubject().getPrettyPrintRFC2253(),
-                privateKey.getCertificate().getNotAfter()
+        SigningProfile profile = tokens.stream()
+                .map(SigningToken::getProfile)
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElse(null);
+        if (profile == null) {
+            return "Aucun token connecté depuis le démarrage | Tokens: " + tokens.size();
+        }
+        return String.format("Certificat: %s | Valide jusqu'au: %s | Tokens: %d",
+                profile.getSigningCertificate().getSubject().getPrettyPrintRFC2253(),
+                profile.getSigningCertificate().getNotAfter(),
+                tokens.size()
         );
     }
 
+    /**
+     * État du pool pour /api/status: latence, occupation et isolement par token.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> pool = new LinkedHashMap<>();
+        for (SigningToken token : tokens) {
+            pool.put(token.getName(), token.snapshot());
+        }
+        return pool;
+    }
+
 
     public boolean testConnection() {
         log.info("═══════════════════════════════════════════════════════════");
@@ -14,8 +14,6 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import tn.facturation.ttn.config.AppProperties;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -31,13 +29,27 @@ public class QrCodeService {
     private final AppProperties config;
 
     public boolean generateQrCode(File xmlFile, File qrOutputFile) {
+        Document doc;
         try {
-            if (extractCEV(xmlFile, qrOutputFile)) {
+            doc = XmlDocuments.parse(xmlFile);
+        } catch (Exception e) {
+            log.error("Erreur génération QR code: {}", e.getMessage(), e);
+            return false;
+        }
+        return generateQrCode(doc, qrOutputFile);
+    }
+
+    /**
+     * Génère le QR code depuis un document déjà parsé.
+     */
+    public boolean generateQrCode(Document doc, File qrOutputFile) {
+        try {
+            if (extractCEV(doc, qrOutputFile)) {
                 log.info("QR code CEV extrait");
                 return true;
             }
 
-            String qrData = extractInvoiceData(xmlFile);
+            String qrData = extractInvoiceData(doc);
             if (qrData != null) {
                 return generateQrImage(qrData, qrOutputFile);
             }
@@ -51,13 +63,8 @@ public class QrCodeService {
         }
     }
 
-    private boolean extractCEV(File xmlFile, File qrOutputFile) {
+    private boolean extractCEV(Document doc, File qrOutputFile) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(xmlFile);
-
             NodeList cevNodes = doc.getElementsByTagName("ReferenceCEV");
             if (cevNodes.getLength() > 0) {
                 String base64Image = cevNodes.item(0).getTextContent().trim();
@@ -77,13 +84,8 @@ public class QrCodeService {
         }
     }
 
-    private String extractInvoiceData(File xmlFile) {
+    private String extractInvoiceData(Document doc) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(xmlFile);
-
             StringBuilder qrData = new StringBuilder();
 
             String documentId = getElementText(doc, "DocumentIdentifier");
@@ -126,7 +128,10 @@ public class QrCodeService {
         }
     }
 
-    private boolean generateQrImage(String content, File outputFile) {
+    /**
+     * Package-private pour QrCodeBenchmark.
+     */
+    boolean generateQrImage(String content, File outputFile) {
         try {
             int size = config.getQrcode().getSize();
 
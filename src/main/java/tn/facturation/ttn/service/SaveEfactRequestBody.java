@@ -0,0 +1,76 @@
+package tn.facturation.ttn.service;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Corps HTTP de saveEfact produit en flux.
+ *
+ * L'enveloppe SOAP est écrite en trois morceaux: le début précalculé (identifiants,
+ * voir {@link SoapEnvelopeTemplates}), le XML
+ * signé encodé en Base64 au fil de la lecture du fichier, puis la fin. La mémoire
+ * utilisée ne dépend plus de la taille de la facture, et la longueur exacte est
+ * calculée à l'avance (pas de transfert chunked).
+ *
+ * Quand le XML signé est encore en mémoire (juste après la signature), il est
+ * encodé de la même façon, au fil de l'envoi, sans passer par le disque ni
+ * faire de copie encodée.
+ */
+final class SaveEfactRequestBody {
+
+    private SaveEfactRequestBody() {
+    }
+
+    static HttpRequest.BodyPublisher of(SoapEnvelopeTemplates templates, Path signedFile) throws IOException {
+        return of(templates, Files.size(signedFile), () -> new BufferedInputStream(Files.newInputStream(signedFile)));
+    }
+
+    static HttpRequest.BodyPublisher of(SoapEnvelopeTemplates templates, byte[] signedXml) {
+        return of(templates, signedXml.length, () -> new ByteArrayInputStream(signedXml));
+    }
+
+    private static HttpRequest.BodyPublisher of(SoapEnvelopeTemplates templates, long size, Source signedXml) {
+        byte[] prefix = templates.saveEfactPrefix();
+        byte[] suffix = templates.saveEfactSuffix();
+        long length = prefix.length + base64Length(size) + suffix.length;
+
+        return HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> open(prefix, signedXml, suffix)),
+                length);
+    }
+
+    private static InputStream open(byte[] prefix, Source signedXml, byte[] suffix) {
+        try {
+            InputStream document = new Base64InputStream(signedXml.open(), true, 0, null);
+            return new SequenceInputStream(Collections.enumeration(List.of(
+                    new ByteArrayInputStream(prefix),
+                    document,
+                    new ByteArrayInputStream(suffix))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static long base64Length(long size) {
+        return 4 * ((size + 2) / 3);
+    }
+
+    /**
+     * XML signé à encoder, rouvert à chaque envoi (un nouvel essai relit depuis le début).
+     */
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+}
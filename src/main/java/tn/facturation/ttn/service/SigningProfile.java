@@ -0,0 +1,85 @@
+package tn.facturation.ttn.service;
+
+import eu.europa.esig.dss.enumerations.DigestAlgorithm;
+import eu.europa.esig.dss.enumerations.SignatureLevel;
+import eu.europa.esig.dss.enumerations.SignaturePackaging;
+import eu.europa.esig.dss.model.x509.CertificateToken;
+import eu.europa.esig.dss.spi.x509.BaselineBCertificateSelector;
+import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
+import eu.europa.esig.dss.xades.XAdESSignatureParameters;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Profil de signature TTN d'une clé, calculé une seule fois à la connexion du token.
+ *
+ * Tout ce qui ne dépend que du certificat est préparé ici: chaîne retenue pour le
+ * KeyInfo (tri et sélection BASELINE_B), empreintes du certificat pour
+ * SigningCertificateV2 et les références, algorithmes. Par facture il ne reste
+ * qu'à copier ces valeurs dans des paramètres neufs ({@link #newParameters()}):
+ * DSS y garde la date de signature et l'identifiant propres à chaque document.
+ *
+ * Le profil est immuable et partagé entre les threads de signature.
+ */
+@Getter
+public final class SigningProfile {
+
+    private static final SignatureLevel LEVEL = SignatureLevel.XAdES_BASELINE_B;
+    private static final SignaturePackaging PACKAGING = SignaturePackaging.ENVELOPED;
+
+    private final DSSPrivateKeyEntry privateKey;
+    private final CertificateToken signingCertificate;
+    private final List<CertificateToken> certificateChain;
+    private final DigestAlgorithm digestAlgorithm;
+    private final byte[] certificateDigest;
+
+    private SigningProfile(DSSPrivateKeyEntry privateKey, DigestAlgorithm digestAlgorithm) {
+        this.privateKey = privateKey;
+        this.signingCertificate = privateKey.getCertificate();
+        this.digestAlgorithm = digestAlgorithm;
+
+        // Même sélection que DSS au moment du KeyInfo: refaite sur une chaîne déjà
+        // triée, elle ne coûte plus que quelques comparaisons par facture
+        CertificateToken[] tokenChain = privateKey.getCertificateChain();
+        this.certificateChain = List.copyOf(new BaselineBCertificateSelector(signingCertificate,
+                tokenChain != null ? Arrays.asList(tokenChain) : List.of())
+                .setTrustAnchorBPPolicy(true)
+                .getCertificates());
+
+        // Les empreintes sont mises en cache dans le certificat (EnumMap non
+        // synchronisée): les calculer ici, avant tout partage entre threads
+        this.certificateDigest = signingCertificate.getDigest(digestAlgorithm);
+        for (CertificateToken certificate : certificateChain) {
+            certificate.getDigest(digestAlgorithm);
+        }
+    }
+
+    public static SigningProfile of(DSSPrivateKeyEntry privateKey) {
+        return new SigningProfile(privateKey, DigestAlgorithm.SHA256);
+    }
+
+    /**
+     * Paramètres XAdES d'une facture (BASELINE_B, enveloppée). Un objet neuf par
+     * document: DSS y fixe la date de signature entre getDataToSign et signDocument.
+     */
+    public XAdESSignatureParameters newParameters() {
+        XAdESSignatureParameters parameters = new XAdESSignatureParameters();
+        parameters.setSignatureLevel(LEVEL);
+        parameters.setSignaturePackaging(PACKAGING);
+        parameters.setDigestAlgorithm(digestAlgorithm);
+        parameters.setSigningCertificateDigestMethod(digestAlgorithm);
+        parameters.setSigningCertificate(signingCertificate);
+        parameters.setCertificateChain(certificateChain);
+        return parameters;
+    }
+
+    /**
+     * Même certificat de signature (un profil reconstruit après reconnexion reste
+     * valable pour une signature préparée avant).
+     */
+    public boolean sameCertificate(SigningProfile other) {
+        return this == other || signingCertificate.equals(other.signingCertificate);
+    }
+}
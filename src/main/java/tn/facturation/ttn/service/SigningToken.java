@@ -0,0 +1,288 @@
+package tn.facturation.ttn.service;
+
+import eu.europa.esig.dss.model.SignatureValue;
+import eu.europa.esig.dss.model.ToBeSigned;
+import eu.europa.esig.dss.token.DSSPrivateKeyEntry;
+import eu.europa.esig.dss.token.SignatureTokenConnection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Une session de signature du pool: un token (ou slot) et sa clé.
+ *
+ * Un token SafeNet ne fait qu'une opération RSA à la fois: les appels sont
+ * sérialisés ici, dans l'ordre d'arrivée, et {@link #getInFlight()} (en cours +
+ * en attente) sert au choix du token le moins chargé. Après
+ * {@code failureThreshold} échecs consécutifs le token est considéré comme
+ * déconnecté; {@link #connect()} rouvre une session (voir SigningTokenSupervisor).
+ *
+ * Le {@link SigningProfile} de la clé est calculé à chaque (re)connexion, pas à
+ * chaque signature.
+ */
+@Slf4j
+public class SigningToken {
+
+    /**
+     * Ouverture d'une nouvelle connexion au token (démarrage et reconnexions).
+     */
+    @FunctionalInterface
+    public interface Connector {
+        SignatureTokenConnection connect() throws Exception;
+    }
+
+    @Getter
+    private final String name;
+    private final Connector connector;
+    private final int failureThreshold;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder busyNanos = new LongAdder();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final long createdAtNanos = System.nanoTime();
+
+    private volatile SignatureTokenConnection connection;
+    private volatile SigningProfile profile;
+    private volatile boolean connected;
+    private boolean everAttached;
+
+    private final Timer signTimer;
+    private final Counter failureCounter;
+    private final Counter reconnectCounter;
+
+    public SigningToken(String name, Connector connector, int failureThreshold, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.connector = connector;
+        this.failureThreshold = Math.max(1, failureThreshold);
+
+        this.signTimer = Timer.builder("signature.token.time")
+                .description("Durée de l'opération de signature sur le token")
+                .tag("token", name)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.failureCounter = Counter.builder("signature.token.failures")
+                .description("Échecs de signature par token")
+                .tag("token", name)
+                .register(meterRegistry);
+        this.reconnectCounter = Counter.builder("signature.token.reconnects")
+                .description("Sessions rouvertes par token")
+                .tag("token", name)
+                .register(meterRegistry);
+        Gauge.builder("signature.token.in_flight", inFlight, AtomicInteger::get)
+                .description("Signatures en cours ou en attente par token")
+                .tag("token", name)
+                .register(meterRegistry);
+        // rate() = taux d'occupation du token (secondes occupées par seconde)
+        FunctionCounter.builder("signature.token.busy", busyNanos, adder -> adder.sum() / 1e9)
+                .description("Temps d'occupation cumulé du token (s)")
+                .baseUnit("seconds")
+                .tag("token", name)
+                .register(meterRegistry);
+        Gauge.builder("signature.token.available", this, token -> token.isAvailable() ? 1 : 0)
+                .description("Token connecté (1) ou en reconnexion (0)")
+                .tag("token", name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Attache une connexion déjà ouverte (ouverture détaillée au démarrage).
+     */
+    public void attach(SignatureTokenConnection opened, DSSPrivateKeyEntry key) {
+        lock.lock();
+        try {
+            closeConnection();
+            connection = opened;
+            profile = SigningProfile.of(key);
+            consecutiveFailures.set(0);
+            connected = true;
+            everAttached = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ferme la session courante et en ouvre une nouvelle avec le {@link Connector}.
+     *
+     * @throws Exception si le token ne répond pas ou ne contient aucune clé
+     */
+    public void connect() throws Exception {
+        lock.lock();
+        try {
+            boolean reopening = everAttached;
+            closeConnection();
+            SignatureTokenConnection opened = connector.connect();
+            List<DSSPrivateKeyEntry> keys;
+            try {
+                keys = opened.getKeys();
+            } catch (RuntimeException e) {
+                opened.close();
+                throw e;
+            }
+            if (keys == null || keys.isEmpty()) {
+                opened.close();
+                throw new IllegalStateException("aucune clé sur le token");
+            }
+            attach(opened, keys.get(0));
+            if (reopening) {
+                reconnectCounter.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Réserve une place sur ce token (choix du pool); à libérer par {@link #release()}
+     * une fois la signature faite ou abandonnée.
+     */
+    public void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Signe les données préparées par DSS avec le profil {@code expected}. Bloque
+     * tant qu'une autre signature est en cours sur ce token.
+     *
+     * @throws TokenFailureException si le token n'a pas pu signer, est déconnecté,
+     *                               ou porte un autre certificat depuis une reconnexion
+     */
+    public SignatureValue sign(ToBeSigned dataToSign, SigningProfile expected) {
+        lock.lock();
+        long startNanos = System.nanoTime();
+        try {
+            if (!connected) {
+                throw new TokenFailureException(name + ": token déconnecté", null);
+            }
+            // Après une reconnexion le profil change: seul le certificat doit rester le même
+            SigningProfile current = profile;
+            if (!current.sameCertificate(expected)) {
+                throw new TokenFailureException(name + ": certificat changé depuis la préparation", null);
+            }
+            SignatureValue value = connection.sign(dataToSign, expected.getDigestAlgorithm(), current.getPrivateKey());
+            consecutiveFailures.set(0);
+            signTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            return value;
+        } catch (TokenFailureException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            onFailure(e);
+            throw new TokenFailureException(name + ": " + e.getMessage(), e);
+        } finally {
+            busyNanos.add(System.nanoTime() - startNanos);
+            lock.unlock();
+        }
+    }
+
+    private void onFailure(RuntimeException e) {
+        failureCounter.increment();
+        int failures = consecutiveFailures.incrementAndGet();
+        if (failures >= failureThreshold && connected) {
+            connected = false;
+            log.warn("Token {} considéré comme déconnecté après {} échec(s): {}", name, failures, e.getMessage());
+        }
+    }
+
+    /**
+     * Vérifie qu'un token inactif répond encore (lecture des clés). Ne fait rien si
+     * une signature est en cours: le token est alors vérifié par l'usage.
+     *
+     * @return false si la session est perdue
+     */
+    public boolean probe() {
+        if (!connected || !lock.tryLock()) {
+            return connected;
+        }
+        try {
+            connection.getKeys();
+            return true;
+        } catch (RuntimeException e) {
+            connected = false;
+            log.warn("Token {} ne répond plus: {}", name, e.getMessage());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isAvailable() {
+        return connected;
+    }
+
+    /**
+     * Profil de la clé courante; null tant que le token n'a jamais été connecté.
+     */
+    public SigningProfile getProfile() {
+        return profile;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getSignedCount() {
+        return signTimer.count();
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            connected = false;
+            closeConnection();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                log.debug("Fermeture du token {}: {}", name, e.getMessage());
+            }
+            connection = null;
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long upNanos = System.nanoTime() - createdAtNanos;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("available", connected);
+        stats.put("inFlight", inFlight.get());
+        stats.put("signed", signTimer.count());
+        stats.put("failures", (long) failureCounter.count());
+        stats.put("reconnects", (long) reconnectCounter.count());
+        stats.put("meanMs", Math.round(signTimer.mean(TimeUnit.MILLISECONDS) * 10) / 10.0);
+        stats.put("maxMs", Math.round(signTimer.max(TimeUnit.MILLISECONDS) * 10) / 10.0);
+        stats.put("utilisation", upNanos > 0 ? Math.round(busyNanos.sum() * 1000.0 / upNanos) / 1000.0 : 0.0);
+        return stats;
+    }
+
+    /**
+     * Échec de l'opération sur le token lui-même (session perdue, token retiré...),
+     * par opposition à un document impossible à signer.
+     */
+    public static class TokenFailureException extends RuntimeException {
+        public TokenFailureException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
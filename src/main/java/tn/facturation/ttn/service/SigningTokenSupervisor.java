@@ -0,0 +1,100 @@
+package tn.facturation.ttn.service;
+
+import lombok.extern.slf4j.Slf4j;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Surveillance des tokens du pool de signature.
+ *
+ * Un token perdu (échecs répétés, test périodique sans réponse, ou ouverture
+ * impossible au démarrage) est reconnecté en tâche de fond, avec un délai
+ * croissant entre les essais. Le pool le retrouve dès qu'il est reconnecté.
+ */
+@Slf4j
+class SigningTokenSupervisor {
+
+    private final AppProperties.Reconnect settings;
+    private final Set<SigningToken> recovering = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    SigningTokenSupervisor(AppProperties.Reconnect settings) {
+        this.settings = settings;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "signature-token-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Lance la reconnexion des tokens non connectés et le test périodique des autres.
+     */
+    void watch(List<SigningToken> tokens) {
+        for (SigningToken token : tokens) {
+            if (!token.isAvailable()) {
+                reconnect(token);
+            }
+        }
+        long probeMs = settings.getProbeIntervalMs();
+        if (probeMs > 0) {
+            scheduler.scheduleWithFixedDelay(() -> probe(tokens), probeMs, probeMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Programme la reconnexion d'un token, sauf si elle est déjà en cours.
+     */
+    void reconnect(SigningToken token) {
+        if (recovering.add(token)) {
+            schedule(token, settings.getInitialDelayMs(), 1);
+        }
+    }
+
+    private void probe(List<SigningToken> tokens) {
+        for (SigningToken token : tokens) {
+            if (!recovering.contains(token) && !token.probe()) {
+                reconnect(token);
+            }
+        }
+    }
+
+    private void schedule(SigningToken token, long delayMs, int attempt) {
+        try {
+            scheduler.schedule(() -> attempt(token, delayMs, attempt), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Arrêt en cours
+            recovering.remove(token);
+        }
+    }
+
+    private void attempt(SigningToken token, long delayMs, int attempt) {
+        try {
+            token.connect();
+            recovering.remove(token);
+            log.info("Token {} reconnecté (essai {})", token.getName(), attempt);
+        } catch (Exception e) {
+            long nextDelayMs = Math.min(settings.getMaxDelayMs(),
+                    Math.max(1, (long) (delayMs * settings.getMultiplier())));
+            if (attempt == 1) {
+                log.warn("Reconnexion du token {} impossible: {} - nouvel essai dans {} ms",
+                        token.getName(), e.getMessage(), nextDelayMs);
+            } else {
+                log.debug("Reconnexion du token {} (essai {}) impossible: {}", token.getName(), attempt, e.getMessage());
+            }
+            schedule(token, nextDelayMs, attempt + 1);
+        }
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+        recovering.clear();
+    }
+}
@@ -0,0 +1,12 @@
+package tn.facturation.ttn.service;
+
+/**
+ * Signature refusée localement: aucun token du pool n'est connecté (reconnexion
+ * en cours). La facture n'est pas en cause, elle sera signée plus tard.
+ */
+public class SigningTokenUnavailableException extends IllegalStateException {
+
+    public SigningTokenUnavailableException() {
+        super("Aucun token de signature connecté");
+    }
+}
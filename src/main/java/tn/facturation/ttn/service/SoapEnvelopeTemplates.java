@@ -0,0 +1,113 @@
+package tn.facturation.ttn.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Enveloppes SOAP TTN précalculées.
+ *
+ * Les parties constantes (déclarations d'espaces de noms, login, mot de passe,
+ * matricule) sont rendues une seule fois au démarrage; chaque requête ne fait que
+ * concaténer ses propres champs entre un préfixe et un suffixe déjà encodés. Ni
+ * MessageFactory ni DOM SAAJ par appel.
+ */
+@Component
+public class SoapEnvelopeTemplates {
+
+    public static final String NAMESPACE_URI = "http://services.elfatoura.tradenet.com.tn/";
+
+    private static final String ENVELOPE_START =
+            "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\""
+                    + " xmlns:ser=\"" + NAMESPACE_URI + "\">"
+                    + "<SOAP-ENV:Header/><SOAP-ENV:Body>";
+    private static final String ENVELOPE_END = "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+
+    private final byte[] saveEfactPrefix;
+    private final byte[] saveEfactSuffix;
+    private final byte[] consultEfactPrefix;
+    private final byte[] consultEfactSuffix;
+
+    @Autowired
+    public SoapEnvelopeTemplates(AppProperties config) {
+        this(config.getTtn().getLogin(), config.getTtn().getPassword(), config.getTtn().getMatricule());
+    }
+
+    public SoapEnvelopeTemplates(String login, String password, String matricule) {
+        String credentials = "<login>" + escape(login) + "</login>"
+                + "<password>" + escape(password) + "</password>"
+                + "<matricule>" + escape(matricule) + "</matricule>";
+
+        this.saveEfactPrefix = utf8(ENVELOPE_START + "<ser:saveEfact>" + credentials + "<documentEfact>");
+        this.saveEfactSuffix = utf8("</documentEfact></ser:saveEfact>" + ENVELOPE_END);
+        this.consultEfactPrefix = utf8(ENVELOPE_START + "<ser:consultEfact>" + credentials + "<efactCriteria>");
+        this.consultEfactSuffix = utf8("</efactCriteria></ser:consultEfact>" + ENVELOPE_END);
+    }
+
+    /**
+     * Début de saveEfact jusqu'à l'ouverture de documentEfact (le Base64 suit).
+     */
+    public byte[] saveEfactPrefix() {
+        return saveEfactPrefix;
+    }
+
+    public byte[] saveEfactSuffix() {
+        return saveEfactSuffix;
+    }
+
+    /**
+     * Requête consultEfact complète, efactCriteria rempli avec {@code criteria}
+     * (nom d'élément → valeur, dans l'ordre d'itération).
+     */
+    public byte[] consultEfact(Map<String, String> criteria) {
+        StringBuilder fields = new StringBuilder(64);
+        for (Map.Entry<String, String> criterion : criteria.entrySet()) {
+            fields.append('<').append(criterion.getKey()).append('>')
+                    .append(escape(criterion.getValue()))
+                    .append("</").append(criterion.getKey()).append('>');
+        }
+        byte[] middle = utf8(fields.toString());
+
+        byte[] request = new byte[consultEfactPrefix.length + middle.length + consultEfactSuffix.length];
+        System.arraycopy(consultEfactPrefix, 0, request, 0, consultEfactPrefix.length);
+        System.arraycopy(middle, 0, request, consultEfactPrefix.length, middle.length);
+        System.arraycopy(consultEfactSuffix, 0, request, consultEfactPrefix.length + middle.length,
+                consultEfactSuffix.length);
+        return request;
+    }
+
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder out = null;
+        for (int i = 0; i < value.length(); i++) {
+            String replacement = switch (value.charAt(i)) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '"' -> "&quot;";
+                case '\'' -> "&apos;";
+                default -> null;
+            };
+            if (replacement != null && out == null) {
+                out = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (out != null) {
+                if (replacement != null) {
+                    out.append(replacement);
+                } else {
+                    out.append(value.charAt(i));
+                }
+            }
+        }
+        return out != null ? out.toString() : value;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
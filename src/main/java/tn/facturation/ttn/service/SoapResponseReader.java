@@ -0,0 +1,234 @@
+package tn.facturation.ttn.service;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Lecture en flux (StAX) des réponses SOAP de TTN.
+ *
+ * Le corps HTTP est lu une seule fois, sans DOM SAAJ ni copie en String: on ne
+ * garde que le message d'erreur (fault), idSaveEfact et le texte de statut. Le
+ * contenu Base64 de xmlContent est décodé au fil de la lecture directement dans
+ * le fichier de destination.
+ */
+final class SoapResponseReader {
+
+    /** Au-delà, le texte de statut est tronqué (il ne sert qu'au diagnostic). */
+    private static final int MAX_STATUS_LENGTH = 4096;
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private SoapResponseReader() {
+    }
+
+    /**
+     * Réponse TTN réduite aux champs utiles.
+     *
+     * @param fault       message du SOAP Fault, ou null
+     * @param idSaveEfact référence TTN, ou null
+     * @param status      texte des autres éléments de la réponse
+     * @param hasContent  true si xmlContent a été écrit dans le fichier de destination
+     */
+    record Result(String fault, String idSaveEfact, String status, boolean hasContent) {
+    }
+
+    /**
+     * @param xmlContentTarget fichier recevant le XML décodé de xmlContent (null: ignoré)
+     */
+    static Result read(InputStream in, Path xmlContentTarget) throws XMLStreamException, IOException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            return read(reader, xmlContentTarget);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Result read(XMLStreamReader reader, Path xmlContentTarget)
+            throws XMLStreamException, IOException {
+        String fault = null;
+        String idSaveEfact = null;
+        StringBuilder status = new StringBuilder();
+        boolean hasContent = false;
+        boolean inFault = false;
+
+        StringBuilder text = new StringBuilder();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                text.setLength(0);
+                if ("Fault".equals(reader.getLocalName())) {
+                    inFault = true;
+                } else if ("xmlContent".equals(reader.getLocalName()) && xmlContentTarget != null) {
+                    hasContent = decodeTo(reader, xmlContentTarget) || hasContent;
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (text.length() < MAX_STATUS_LENGTH) {
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("Fault".equals(name)) {
+                    inFault = false;
+                }
+                String value = text.toString().trim();
+                text.setLength(0);
+                if (value.isEmpty()) {
+                    continue;
+                }
+                if (inFault) {
+                    // SOAP 1.1 (faultstring) ou 1.2 (Reason/Text)
+                    if ("faultstring".equals(name) || "Text".equals(name)) {
+                        fault = value;
+                    }
+                } else if ("idSaveEfact".equals(name)) {
+                    idSaveEfact = value;
+                } else if (!"xmlContent".equals(name) && status.length() < MAX_STATUS_LENGTH) {
+                    status.append(status.length() > 0 ? " " : "").append(value);
+                }
+            }
+        }
+
+        return new Result(fault, idSaveEfact, status.toString(), hasContent);
+    }
+
+    /**
+     * Lecture d'une réponse consultEfact contenant plusieurs factures (recherche
+     * par période): chaque élément qui regroupe documentNumber et xmlContent est
+     * transmis à {@code sink} dès sa fin, sans garder les précédents en mémoire.
+     *
+     * @param scratch fournit un fichier de travail par xmlContent rencontré
+     * @return le nombre de factures transmises
+     */
+    static int readEfacts(InputStream in, Supplier<Path> scratch, Consumer<TtnEfact> sink)
+            throws XMLStreamException, IOException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        Deque<EfactFrame> frames = new ArrayDeque<>();
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    text.setLength(0);
+                    if ("xmlContent".equals(reader.getLocalName()) && !frames.isEmpty()) {
+                        Path file = scratch.get();
+                        if (decodeTo(reader, file)) {
+                            frames.peek().replaceContent(file);
+                        } else {
+                            Files.deleteIfExists(file);
+                        }
+                    } else {
+                        frames.push(new EfactFrame());
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (text.length() < MAX_STATUS_LENGTH) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    EfactFrame closing = frames.pop();
+                    EfactFrame parent = frames.peek();
+                    String value = text.toString().trim();
+                    text.setLength(0);
+
+                    if (closing.documentNumber != null || closing.content != null) {
+                        if (closing.documentNumber != null && closing.content != null) {
+                            sink.accept(new TtnEfact(closing.documentNumber, closing.idSaveEfact, closing.content));
+                            count++;
+                        } else if (closing.content != null) {
+                            Files.deleteIfExists(closing.content);
+                        }
+                    } else if (parent != null && !value.isEmpty()) {
+                        switch (reader.getLocalName()) {
+                            case "documentNumber" -> parent.documentNumber = value;
+                            case "idSaveEfact" -> parent.idSaveEfact = value;
+                            default -> { }
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+            // Contenus de factures incomplètes (réponse tronquée)
+            for (EfactFrame frame : frames) {
+                if (frame.content != null) {
+                    Files.deleteIfExists(frame.content);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Décode le Base64 de l'élément courant dans le fichier, morceau par morceau,
+     * jusqu'à la fin de l'élément.
+     *
+     * @return true si au moins un octet a été écrit
+     */
+    private static boolean decodeTo(XMLStreamReader reader, Path target) throws XMLStreamException, IOException {
+        long written = 0;
+        byte[] chunk = new byte[8192];
+        try (OutputStream out = new Base64OutputStream(
+                new BufferedOutputStream(Files.newOutputStream(target)), false)) {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    break;
+                }
+                if (event != XMLStreamConstants.CHARACTERS && event != XMLStreamConstants.CDATA) {
+                    continue;
+                }
+                char[] chars = reader.getTextCharacters();
+                int start = reader.getTextStart();
+                int length = reader.getTextLength();
+                for (int offset = 0; offset < length; offset += chunk.length) {
+                    int n = Math.min(chunk.length, length - offset);
+                    // Base64: ASCII uniquement, les autres caractères sont ignorés au décodage
+                    for (int i = 0; i < n; i++) {
+                        chunk[i] = (byte) chars[start + offset + i];
+                    }
+                    out.write(chunk, 0, n);
+                }
+                written += length;
+            }
+        }
+        return written > 0 && Files.size(target) > 0;
+    }
+
+    /** Champs collectés pour un élément en cours de lecture. */
+    private static final class EfactFrame {
+
+        private String documentNumber;
+        private String idSaveEfact;
+        private Path content;
+
+        private void replaceContent(Path file) throws IOException {
+            if (content != null) {
+                Files.deleteIfExists(content);
+            }
+            content = file;
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -18,8 +18,10 @@ import java.util.Date;
 public class StatusService {
 
     private final AppProperties config;
+    private final InvoiceStepMetrics stepMetrics;
 
     public void updateStatus(String invoiceNumber, String status, String details) {
+        long startNanos = System.nanoTime();
         File statusFile = new File(config.getFolders().getOutput(), invoiceNumber + ".status");
 
         try (PrintWriter writer = new PrintWriter(new FileWriter(statusFile))) {
@@ -39,13 +41,16 @@ public class StatusService {
             addFilePath(writer, "FICHIER_QRCODE", config.getFolders().getQrcode(), invoiceNumber, ".png");
 
             log.debug("Statut mis à jour: {} - {}", invoiceNumber, status);
+            stepMetrics.record(InvoiceStepMetrics.STATUS_WRITE, InvoiceStepMetrics.SUCCESS, startNanos);
 
         } catch (IOException e) {
             log.error("Erreur écriture statut: {}", e.getMessage());
+            stepMetrics.record(InvoiceStepMetrics.STATUS_WRITE, InvoiceStepMetrics.FAILURE, startNanos);
         }
     }
 
     public void updateStatusWithTtnRef(String invoiceNumber, String status, String ttnReference, String details) {
+        long startNanos = System.nanoTime();
         File statusFile = new File(config.getFolders().getOutput(), invoiceNumber + ".status");
 
         try (PrintWriter writer = new PrintWriter(new FileWriter(statusFile))) {
@@ -66,13 +71,16 @@ public class StatusService {
             addFilePath(writer, "FICHIER_QRCODE", config.getFolders().getQrcode(), invoiceNumber, ".png");
 
             log.info("Statut avec ref TTN: {} - {}", invoiceNumber, ttnReference);
+            stepMetrics.record(InvoiceStepMetrics.STATUS_WRITE, InvoiceStepMetrics.SUCCESS, startNanos);
 
         } catch (IOException e) {
             log.error("Erreur écriture statut: {}", e.getMessage());
+            stepMetrics.record(InvoiceStepMetrics.STATUS_WRITE, InvoiceStepMetrics.FAILURE, startNanos);
         }
     }
 
     public void updateStatusJson(String invoiceNumber, String status, String ttnReference, String details) {
+        long startNanos = System.nanoTime();
         File statusFile = new File(config.getFolders().getOutput(), invoiceNumber + ".json");
 
         try (FileWriter writer = new FileWriter(statusFile)) {
@@ -103,9 +111,11 @@ public class StatusService {
             writer.write(json.toString());
 
             log.debug("Statut JSON créé: {}", invoiceNumber);
+            stepMetrics.record(InvoiceStepMetrics.STATUS_WRITE, InvoiceStepMetrics.SUCCESS, startNanos);
 
         } catch (IOException e) {
             log.error("Erreur écriture statut JSON: {}", e.getMessage());
+            stepMetrics.record(InvoiceStepMetrics.STATUS_WRITE, InvoiceStepMetrics.FAILURE, startNanos);
         }
     }
 
@@ -0,0 +1,203 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disjoncteur autour des appels TTN (saveEfact / consultEfact).
+ *
+ * CLOSED: les appels passent. Après {@code failureThreshold} pannes consécutives
+ * (réseau, timeout, HTTP 5xx) il passe OPEN: les appels échouent immédiatement,
+ * sans payer les timeouts de connexion et de lecture. Après {@code openDurationMs}
+ * il passe HALF_OPEN et laisse passer {@code halfOpenProbes} appels de test: il se
+ * referme quand tous ont réussi, le premier échec le rouvre.
+ *
+ * Chaque appel autorisé reçoit un {@link Call} lié à l'état du moment: le verdict
+ * d'un appel parti avant un changement d'état (succès tardif pendant OPEN, échec
+ * d'avant la réouverture) est ignoré.
+ */
+@Slf4j
+@Component
+public class TtnCircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final AppProperties.CircuitBreaker settings;
+
+    private State state = State.CLOSED;
+    // Incrémenté à chaque changement d'état
+    private long epoch;
+    private int consecutiveFailures;
+    private int probesInFlight;
+    private int probeSuccesses;
+    private long openedAt;
+
+    public TtnCircuitBreaker(AppProperties config, MeterRegistry meterRegistry) {
+        this.settings = config.getTtn().getCircuitBreaker();
+
+        Gauge.builder("ttn.circuit.state", this, b -> b.getState().ordinal())
+                .description("État du disjoncteur TTN (0=fermé, 1=semi-ouvert, 2=ouvert)")
+                .register(meterRegistry);
+        Gauge.builder("ttn.circuit.failures", this, b -> b.getConsecutiveFailures())
+                .description("Pannes TTN consécutives")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Réserve le droit de faire un appel TTN.
+     *
+     * @return l'appel, dont le verdict est à rendre une fois terminé, ou null si le
+     * disjoncteur est ouvert (ou si tous les appels de test sont déjà en cours)
+     */
+    public synchronized Call tryAcquire() {
+        refreshState();
+        return switch (state) {
+            case CLOSED -> new Call(epoch);
+            case HALF_OPEN -> {
+                if (probesInFlight + probeSuccesses < probes()) {
+                    probesInFlight++;
+                    yield new Call(epoch);
+                }
+                yield null;
+            }
+            case OPEN -> null;
+        };
+    }
+
+    /**
+     * Indique sans rien réserver si un appel aurait une chance de passer.
+     */
+    public synchronized boolean allowsTraffic() {
+        refreshState();
+        return state == State.CLOSED
+                || (state == State.HALF_OPEN && probesInFlight + probeSuccesses < probes());
+    }
+
+    private synchronized void onSuccess(long callEpoch) {
+        if (callEpoch != epoch) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            probesInFlight--;
+            probeSuccesses++;
+            if (probeSuccesses >= probes()) {
+                log.info("Disjoncteur TTN refermé: service rétabli");
+                transition(State.CLOSED);
+            }
+        }
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void onFailure(long callEpoch) {
+        if (callEpoch != epoch) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= settings.getFailureThreshold()) {
+            open();
+        }
+    }
+
+    private synchronized void onIgnored(long callEpoch) {
+        // Appel de test sans verdict: sa place revient à un autre appel de test
+        if (callEpoch == epoch && state == State.HALF_OPEN) {
+            probesInFlight--;
+        }
+    }
+
+    public synchronized State getState() {
+        refreshState();
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        refreshState();
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("state", state.name());
+        info.put("consecutiveFailures", consecutiveFailures);
+        if (state != State.CLOSED) {
+            info.put("openedAt", Instant.ofEpochMilli(openedAt).toString());
+        }
+        return info;
+    }
+
+    private void open() {
+        transition(State.OPEN);
+        openedAt = System.currentTimeMillis();
+        log.warn("Disjoncteur TTN ouvert après {} panne(s) consécutive(s), nouvel essai dans {} ms",
+                consecutiveFailures, settings.getOpenDurationMs());
+    }
+
+    private void refreshState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= settings.getOpenDurationMs()) {
+            transition(State.HALF_OPEN);
+            log.info("Disjoncteur TTN semi-ouvert: appels de test autorisés");
+        }
+    }
+
+    private void transition(State next) {
+        state = next;
+        epoch++;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+    }
+
+    private int probes() {
+        return Math.max(1, settings.getHalfOpenProbes());
+    }
+
+    /**
+     * Appel autorisé par le disjoncteur: verdict rendu exactement une fois.
+     */
+    public final class Call {
+
+        private final long callEpoch;
+        private boolean done;
+
+        private Call(long callEpoch) {
+            this.callEpoch = callEpoch;
+        }
+
+        /** TTN a répondu (acceptation ou rejet métier). */
+        public void success() {
+            if (complete()) {
+                onSuccess(callEpoch);
+            }
+        }
+
+        /** Panne TTN: réseau, timeout, HTTP 408/429/5xx, réponse illisible. */
+        public void failure() {
+            if (complete()) {
+                onFailure(callEpoch);
+            }
+        }
+
+        /** Échec local (fichier, disque...): ne dit rien de l'état de TTN. */
+        public void ignore() {
+            if (complete()) {
+                onIgnored(callEpoch);
+            }
+        }
+
+        private synchronized boolean complete() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package tn.facturation.ttn.service;
+
+/**
+ * Appel TTN refusé localement: le disjoncteur est ouvert, aucune requête n'est partie.
+ */
+public class TtnCircuitOpenException extends TtnException {
+
+    public TtnCircuitOpenException() {
+        super("Disjoncteur TTN ouvert", true);
+    }
+}
@@ -0,0 +1,200 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limite adaptative du nombre d'appels TTN simultanés (AIMD).
+ *
+ * Tant que la latence reste stable, la limite augmente d'environ un appel par
+ * fenêtre (+1/limite à chaque succès). Un timeout ou une réponse de surcharge
+ * (HTTP 408, 429, 5xx) la réduit d'un facteur {@code backoffRatio}. La charge
+ * suit ainsi ce que TTN absorbe réellement au lieu d'un nombre de threads fixe.
+ */
+@Slf4j
+@Component
+public class TtnConcurrencyLimiter {
+
+    /** Poids d'un échantillon dans la latence moyenne de référence. */
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    private final AppProperties.Limiter settings;
+    private final Counter rejections;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private double baselineNanos;
+
+    public TtnConcurrencyLimiter(AppProperties config, MeterRegistry meterRegistry) {
+        this.settings = config.getTtn().getLimiter();
+        this.limit = clamp(settings.getInitialLimit());
+
+        Gauge.builder("ttn.limiter.limit", this, TtnConcurrencyLimiter::getLimit)
+                .description("Limite courante d'appels TTN simultanés")
+                .register(meterRegistry);
+        Gauge.builder("ttn.limiter.inflight", this, TtnConcurrencyLimiter::getInFlight)
+                .description("Appels TTN en cours sous la limite adaptative")
+                .register(meterRegistry);
+        this.rejections = Counter.builder("ttn.limiter.rejections")
+                .description("Appels TTN refusés faute de place sous la limite")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Attend une place sous la limite courante.
+     *
+     * @return le jeton à rendre en fin d'appel, ou null si aucune place ne s'est libérée à temps
+     */
+    public Permit acquire(long timeoutMs) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    rejections.increment();
+                    return null;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            inFlight++;
+            return new Permit(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        lock.lock();
+        try {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("limit", (int) limit);
+            info.put("inFlight", inFlight);
+            info.put("rejections", (long) rejections.count());
+            return info;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess(long latencyNanos) {
+        lock.lock();
+        try {
+            boolean stable = baselineNanos == 0 || latencyNanos <= baselineNanos * settings.getLatencyTolerance();
+            baselineNanos = baselineNanos == 0
+                    ? latencyNanos
+                    : baselineNanos + LATENCY_SMOOTHING * (latencyNanos - baselineNanos);
+            // N'augmente que si la limite est réellement utilisée
+            if (stable && inFlight * 2 >= (int) limit) {
+                limit = clamp(limit + 1.0 / limit);
+            }
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onDropped() {
+        lock.lock();
+        try {
+            double previous = limit;
+            limit = clamp(limit * settings.getBackoffRatio());
+            if ((int) limit < (int) previous) {
+                log.warn("TTN surchargé: limite d'appels simultanés {} -> {}", (int) previous, (int) limit);
+            }
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onIgnored() {
+        lock.lock();
+        try {
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        inFlight--;
+        released.signalAll();
+    }
+
+    private double clamp(double value) {
+        int min = Math.max(1, settings.getMinLimit());
+        return Math.max(min, Math.min(Math.max(min, settings.getMaxLimit()), value));
+    }
+
+    /**
+     * Place réservée pour un appel: rendue exactement une fois, avec le verdict de l'appel.
+     */
+    public final class Permit {
+
+        private final long startNanos;
+        private boolean done;
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /** Réponse reçue de TTN (acceptée ou rejet métier). */
+        public void success() {
+            if (complete()) {
+                onSuccess(System.nanoTime() - startNanos);
+            }
+        }
+
+        /** Timeout ou réponse de surcharge: réduit la limite. */
+        public void dropped() {
+            if (complete()) {
+                onDropped();
+            }
+        }
+
+        /** Appel sans signification pour la capacité de TTN (non parti, erreur locale). */
+        public void ignore() {
+            if (complete()) {
+                onIgnored();
+            }
+        }
+
+        private synchronized boolean complete() {
+            if (done) {
+                return false;
+            }
+            done = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package tn.facturation.ttn.service;
+
+import java.nio.file.Path;
+
+/**
+ * Facture retournée par une consultation TTN par période.
+ *
+ * @param xmlFile XML signé par TTN, décodé dans un fichier de travail: à déplacer ou supprimer
+ */
+public record TtnEfact(String documentNumber, String idSaveEfact, Path xmlFile) {
+}
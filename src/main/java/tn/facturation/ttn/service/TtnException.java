@@ -0,0 +1,26 @@
+package tn.facturation.ttn.service;
+
+import lombok.Getter;
+
+/**
+ * Échec d'un appel TTN.
+ *
+ * {@code retryable} distingue les pannes passagères (réseau, timeout, HTTP 5xx)
+ * qui méritent une nouvelle tentative, des rejets définitifs (faute SOAP,
+ * facture refusée).
+ */
+@Getter
+public class TtnException extends Exception {
+
+    private final boolean retryable;
+
+    public TtnException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public TtnException(String message, boolean retryable, Throwable cause) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+}
@@ -0,0 +1,106 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test de disponibilité TTN en tâche de fond (GET du WSDL, app.ttn.health.*).
+ *
+ * Le résultat est mis en cache: /api/status le lit sans appeler TTN, quelle que
+ * soit la fréquence d'interrogation du répartiteur de charge.
+ */
+@Slf4j
+@Component
+public class TtnHealthProber {
+
+    private final AppProperties config;
+    private final TtnHttpTransport transport;
+    private final Timer successTimer;
+    private final Timer failureTimer;
+
+    private volatile Snapshot snapshot = new Snapshot(null, null, null, 0, -1, null);
+
+    public TtnHealthProber(AppProperties config, TtnHttpTransport transport, MeterRegistry meterRegistry) {
+        this.config = config;
+        this.transport = transport;
+        this.successTimer = Timer.builder("ttn.health.probe")
+                .description("Latence du test de disponibilité TTN")
+                .tag("outcome", "success")
+                .register(meterRegistry);
+        this.failureTimer = Timer.builder("ttn.health.probe")
+                .description("Latence du test de disponibilité TTN")
+                .tag("outcome", "failure")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${app.ttn.health.interval-ms:30000}", initialDelay = 5000)
+    public void probe() {
+        if (!config.getTtn().isEnabled()) {
+            return;
+        }
+
+        Snapshot previous = snapshot;
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            int responseCode = transport.get(config.getTtn().getWsdlUrl(),
+                    Duration.ofMillis(config.getTtn().getHealth().getTimeoutMs()));
+            if (responseCode != 200) {
+                error = "HTTP " + responseCode;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        long elapsed = System.nanoTime() - start;
+        Instant now = Instant.now();
+
+        if (error == null) {
+            successTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            if (previous.consecutiveFailures() > 0) {
+                log.info("Connexion TTN rétablie");
+            }
+            snapshot = new Snapshot(true, now, now, 0, TimeUnit.NANOSECONDS.toMillis(elapsed), null);
+        } else {
+            failureTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            if (previous.consecutiveFailures() == 0) {
+                log.warn("Connexion TTN échouée: {}", error);
+            }
+            snapshot = new Snapshot(false, now, previous.lastSuccess(), previous.consecutiveFailures() + 1,
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), error);
+        }
+    }
+
+    /**
+     * Dernier résultat connu, sans appel réseau.
+     */
+    public Map<String, Object> snapshot() {
+        Snapshot current = snapshot;
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("connected", current.connected());
+        info.put("lastCheck", current.lastCheck() != null ? current.lastCheck().toString() : null);
+        info.put("lastSuccess", current.lastSuccess() != null ? current.lastSuccess().toString() : null);
+        info.put("consecutiveFailures", current.consecutiveFailures());
+        info.put("latencyMs", current.latencyMs());
+        if (current.error() != null) {
+            info.put("error", current.error());
+        }
+        return info;
+    }
+
+    private record Snapshot(Boolean connected, Instant lastCheck, Instant lastSuccess,
+                            int consecutiveFailures, long latencyMs, String error) {
+    }
+}
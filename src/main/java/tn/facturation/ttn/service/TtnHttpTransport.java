@@ -0,0 +1,145 @@
+package tn.facturation.ttn.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport HTTP des appels SOAP vers TTN.
+ *
+ * Un seul HttpClient (HTTP/1.1 keep-alive) pour tout le service: les connexions
+ * TLS sont réutilisées d'un appel à l'autre au lieu de refaire une poignée de main
+ * par requête. Les appels sont asynchrones: quelques threads suffisent pour garder
+ * beaucoup de requêtes en vol. Leur nombre est borné en amont par la limite
+ * adaptative ({@link TtnConcurrencyLimiter}); le transport n'attend jamais.
+ *
+ * Taille du pool de connexions et durée du keep-alive: options JVM
+ * {@code -Djdk.httpclient.connectionPoolSize} et {@code -Djdk.httpclient.keepalive.timeout}
+ * (globales à la JVM, lues une seule fois par le JDK), voir start.bat.
+ *
+ * Les réponses sont traitées sur un pool dédié ({@code responseThreads}): lecture
+ * StAX, décodage Base64 sur disque et suites enchaînées par le pipeline (journal,
+ * passage à l'étape suivante) peuvent bloquer, jamais dans le pool commun de la JVM.
+ */
+@Slf4j
+@Component
+public class TtnHttpTransport {
+
+    private final AppProperties config;
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final ExecutorService responseExecutor;
+    private final URI endpoint;
+
+    public TtnHttpTransport(AppProperties config) {
+        this.config = config;
+        AppProperties.Http http = config.getTtn().getHttp();
+
+        this.executor = Executors.newFixedThreadPool(Math.max(1, http.getIoThreads()), namedDaemon("ttn-http-"));
+        this.responseExecutor = Executors.newFixedThreadPool(Math.max(1, http.getResponseThreads()),
+                namedDaemon("ttn-response-"));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(config.getTtn().getConnectionTimeoutMs()))
+                .executor(executor)
+                .build();
+        this.endpoint = URI.create(config.getTtn().getEndpoint());
+    }
+
+    /**
+     * POST SOAP asynchrone vers l'endpoint TTN.
+     *
+     * Le flux retourné est le corps d'une réponse HTTP 200; l'appelant doit le fermer
+     * (ce qui rend la connexion au pool keep-alive). Les erreurs sont des
+     * {@link TtnException} enveloppées dans une {@link CompletionException}.
+     * Le résultat est livré sur un thread de {@link #responseExecutor()}.
+     */
+    public CompletableFuture<InputStream> post(HttpRequest.BodyPublisher body) {
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .timeout(Duration.ofMillis(config.getTtn().getReadTimeoutMs()))
+                .header("Content-Type", "text/xml; charset=utf-8")
+                .POST(body)
+                .build();
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).handleAsync((resp, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                throw new CompletionException(
+                        new TtnException("TTN injoignable: " + cause.getMessage(), true, cause));
+            }
+
+            InputStream bodyStream = resp.body();
+            if (resp.statusCode() != 200) {
+                closeQuietly(bodyStream);
+                int code = resp.statusCode();
+                throw new CompletionException(new TtnException("HTTP " + code, isRetryable(code)));
+            }
+            return bodyStream;
+        }, responseExecutor);
+    }
+
+    /**
+     * Pool de traitement des réponses, pour lire le corps et enchaîner la suite
+     * ({@code thenApplyAsync(..., responseExecutor())}).
+     */
+    public Executor responseExecutor() {
+        return responseExecutor;
+    }
+
+    /**
+     * GET synchrone (test de disponibilité du WSDL).
+     *
+     * @return le code HTTP
+     */
+    public int get(String url, Duration timeout) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .timeout(timeout)
+                .GET()
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    public static boolean isRetryable(int responseCode) {
+        return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+    }
+
+    private void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.debug("Erreur fermeture réponse TTN: {}", e.getMessage());
+        }
+    }
+
+    private static ThreadFactory namedDaemon(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        responseExecutor.shutdown();
+    }
+}
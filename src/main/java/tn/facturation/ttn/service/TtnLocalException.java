@@ -0,0 +1,13 @@
+package tn.facturation.ttn.service;
+
+/**
+ * Échec local autour d'un appel TTN (fichier illisible, écriture disque
+ * impossible...): ne dit rien de l'état de TTN, donc ni le disjoncteur ni la
+ * limite adaptative n'en tiennent compte.
+ */
+public class TtnLocalException extends TtnException {
+
+    public TtnLocalException(String message, Throwable cause) {
+        super(message, false, cause);
+    }
+}
@@ -5,228 +5,289 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import tn.facturation.ttn.config.AppProperties;
 
-import jakarta.xml.soap.*;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpRequest;
 import java.nio.file.Files;
-import java.util.Base64;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class TtnSoapClientService {
 
-    private final AppProperties config;
-
-    public String saveEfact(File signedFile, String invoiceNumber) {
-        try {
-            log.info("Envoi TTN: {}", invoiceNumber);
+    // Éléments de efactCriteria. Recherche par période (réconciliation): noms non
+    // confirmés par le WSDL TTN, à vérifier avant d'activer app.ttn.reconciliation
+    private static final String CRITERIA_DOCUMENT_NUMBER = "documentNumber";
+    private static final String CRITERIA_DATE_FROM = "dateFrom";
+    private static final String CRITERIA_DATE_TO = "dateTo";
+    private static final String CRITERIA_PAGE = "pageNumber";
+    private static final String CRITERIA_PAGE_SIZE = "pageSize";
 
-            byte[] xmlBytes = Files.readAllBytes(signedFile.toPath());
-            String base64Xml = Base64.getEncoder().encodeToString(xmlBytes);
-
-            SOAPMessage soapRequest = createSaveEfactRequest(
-                    config.getTtn().getLogin(),
-                    config.getTtn().getPassword(),
-                    config.getTtn().getMatricule(),
-                    base64Xml
-            );
-
-            SOAPMessage soapResponse = sendSoapMessage(soapRequest);
-            String result = extractSaveEfactResponse(soapResponse);
-
-            if (result != null && (result.contains("succès") || result.contains("success") || result.contains("enregistr"))) {
-                log.info("Facture acceptée par TTN");
-                return extractReference(result);
-            } else {
-                log.error("Facture rejetée: {}", result);
-                return null;
-            }
+    private final AppProperties config;
+    private final TtnCircuitBreaker circuitBreaker;
+    private final TtnHttpTransport transport;
+    private final SoapEnvelopeTemplates templates;
+    private final TtnConcurrencyLimiter limiter;
 
-        } catch (Exception e) {
-            log.error("Erreur envoi TTN: {}", e.getMessage(), e);
-            return null;
-        }
+    public String saveEfact(File signedFile, String invoiceNumber) throws TtnException {
+        return await(saveEfactAsync(signedFile, invoiceNumber));
     }
 
-    public File consultEfact(String invoiceNumber) {
-        try {
-            log.info("Consultation TTN: {}", invoiceNumber);
-
-            SOAPMessage soapRequest = createConsultEfactRequest(
-                    config.getTtn().getLogin(),
-                    config.getTtn().getPassword(),
-                    config.getTtn().getMatricule(),
-                    invoiceNumber
-            );
-
-            SOAPMessage soapResponse = sendSoapMessage(soapRequest);
-            byte[] xmlContent = extractXmlContent(soapResponse);
-
-            if (xmlContent != null && xmlContent.length > 0) {
-                File tempFile = File.createTempFile("ttn_", ".xml");
-                Files.write(tempFile.toPath(), xmlContent);
-                log.info("Facture récupérée de TTN");
-                return tempFile;
-            }
-
-            return null;
-
-        } catch (Exception e) {
-            log.error("Erreur consultation TTN: {}", e.getMessage(), e);
-            return null;
-        }
+    public File consultEfact(String invoiceNumber, File target) throws TtnException {
+        return await(consultEfactAsync(invoiceNumber, target));
     }
 
-    public boolean testConnection() {
-        try {
-            log.info("Test connexion TTN...");
-            URL url = new URL(config.getTtn().getWsdlUrl());
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setConnectTimeout(5000);
-            int responseCode = conn.getResponseCode();
-            boolean success = responseCode == 200;
-            log.info(success ? "Connexion TTN OK" : "Connexion TTN échouée");
-            return success;
-        } catch (Exception e) {
-            log.error("Connexion TTN échouée: {}", e.getMessage());
-            return false;
-        }
+    /**
+     * Envoi asynchrone: la référence TTN (idSaveEfact), ou une {@link TtnException}.
+     */
+    public CompletableFuture<String> saveEfactAsync(File signedFile, String invoiceNumber) {
+        // Envoi en flux: le XML signé est encodé en Base64 pendant l'écriture sur le socket
+        return saveEfactAsync(invoiceNumber, () -> SaveEfactRequestBody.of(templates, signedFile.toPath()));
     }
 
-    private SOAPMessage createSaveEfactRequest(String login, String password, String matricule, String base64Xml) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage soapMessage = messageFactory.createMessage();
-        SOAPPart soapPart = soapMessage.getSOAPPart();
-
-        String namespace = "ser";
-        String namespaceURI = "http://services.elfatoura.tradenet.com.tn/";
-
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration(namespace, namespaceURI);
-
-        SOAPBody soapBody = envelope.getBody();
-        SOAPElement saveEfact = soapBody.addChildElement("saveEfact", namespace);
-
-        SOAPElement loginElement = saveEfact.addChildElement("login");
-        loginElement.addTextNode(login);
-
-        SOAPElement passwordElement = saveEfact.addChildElement("password");
-        passwordElement.addTextNode(password);
-
-        SOAPElement matriculeElement = saveEfact.addChildElement("matricule");
-        matriculeElement.addTextNode(matricule);
-
-        SOAPElement documentElement = saveEfact.addChildElement("documentEfact");
-        documentElement.addTextNode(base64Xml);
-
-        soapMessage.saveChanges();
-        return soapMessage;
+    /**
+     * Envoi asynchrone du XML signé resté en mémoire (sans relecture du fichier signé).
+     */
+    public CompletableFuture<String> saveEfactAsync(byte[] signedXml, String invoiceNumber) {
+        return saveEfactAsync(invoiceNumber, () -> SaveEfactRequestBody.of(templates, signedXml));
     }
 
-    private SOAPMessage createConsultEfactRequest(String login, String password, String matricule, String invoiceNumber) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage soapMessage = messageFactory.createMessage();
-        SOAPPart soapPart = soapMessage.getSOAPPart();
-
-        String namespace = "ser";
-        String namespaceURI = "http://services.elfatoura.tradenet.com.tn/";
-
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration(namespace, namespaceURI);
+    private CompletableFuture<String> saveEfactAsync(String invoiceNumber, RequestBody requestBody) {
+        return guarded(() -> {
+            log.info("Envoi TTN: {}", invoiceNumber);
 
-        SOAPBody soapBody = envelope.getBody();
-        SOAPElement consultEfact = soapBody.addChildElement("consultEfact", namespace);
+            HttpRequest.BodyPublisher body;
+            try {
+                body = requestBody.open();
+            } catch (Exception e) {
+                log.error("Erreur envoi TTN: {}", e.getMessage(), e);
+                return CompletableFuture.failedFuture(
+                        new TtnLocalException("Erreur envoi TTN: " + e.getMessage(), e));
+            }
 
-        SOAPElement loginElement = consultEfact.addChildElement("login");
-        loginElement.addTextNode(login);
+            return send(body, null).thenApply(response -> {
+                if (response.fault() != null) {
+                    log.error("Facture rejetée: {}", response.fault());
+                    throw new CompletionException(
+                            new TtnException("Facture rejetée par TTN: Erreur: " + response.fault(), false));
+                }
 
-        SOAPElement passwordElement = consultEfact.addChildElement("password");
-        passwordElement.addTextNode(password);
+                String status = response.status();
+                if (status.contains("succès") || status.contains("success") || status.contains("enregistr")) {
+                    log.info("Facture acceptée par TTN");
+                    return response.idSaveEfact() != null
+                            ? response.idSaveEfact()
+                            : "REF_" + System.currentTimeMillis();
+                }
+                log.error("Facture rejetée: {}", status);
+                throw new CompletionException(new TtnException("Facture rejetée par TTN: " + status, false));
+            });
+        });
+    }
 
-        SOAPElement matriculeElement = consultEfact.addChildElement("matricule");
-        matriculeElement.addTextNode(matricule);
+    /**
+     * Consultation asynchrone: le XML signé par TTN est écrit directement dans
+     * {@code target}, puis publié par renommage atomique (un lecteur ne voit jamais
+     * de fichier partiel).
+     *
+     * @return {@code target}, ou null si le XML n'est pas (encore) disponible
+     */
+    public CompletableFuture<File> consultEfactAsync(String invoiceNumber, File target) {
+        return guarded(() -> {
+            log.info("Consultation TTN: {}", invoiceNumber);
 
-        SOAPElement criteriaElement = consultEfact.addChildElement("efactCriteria");
-        SOAPElement docNumberElement = criteriaElement.addChildElement("documentNumber");
-        docNumberElement.addTextNode(invoiceNumber);
+            byte[] soapRequest = templates.consultEfact(Map.of(CRITERIA_DOCUMENT_NUMBER, invoiceNumber));
+
+            // Écrit à côté de la destination (même répertoire) pour permettre le renommage atomique
+            Path partial = target.toPath().resolveSibling(target.getName() + ".part");
+
+            return send(HttpRequest.BodyPublishers.ofByteArray(soapRequest), partial)
+                    .whenComplete((response, error) -> {
+                        if (error != null || !response.hasContent()) {
+                            deleteQuietly(partial);
+                        }
+                    })
+                    .thenApply(response -> {
+                        if (!response.hasContent()) {
+                            return null;
+                        }
+                        try {
+                            Files.move(partial, target.toPath(),
+                                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        } catch (IOException e) {
+                            deleteQuietly(partial);
+                            throw new CompletionException(
+                                    new TtnLocalException("Écriture XML TTN impossible: " + e.getMessage(), e));
+                        }
+                        log.info("Facture récupérée de TTN");
+                        return target;
+                    });
+        });
+    }
 
-        soapMessage.saveChanges();
-        return soapMessage;
+    /**
+     * Consultation par période (réconciliation): une page des factures traitées par
+     * TTN entre {@code from} et {@code to}. Chaque facture est décodée dans un fichier
+     * de {@code workDir} et transmise à {@code sink} au fil de la lecture.
+     *
+     * @return le nombre de factures de la page
+     */
+    public CompletableFuture<Integer> consultEfactRangeAsync(LocalDate from, LocalDate to, int page, int pageSize,
+                                                             Path workDir, Consumer<TtnEfact> sink) {
+        return guarded(() -> {
+            log.info("Consultation TTN du {} au {} (page {})", from, to, page);
+
+            Map<String, String> criteria = new LinkedHashMap<>();
+            criteria.put(CRITERIA_DATE_FROM, from.toString());
+            criteria.put(CRITERIA_DATE_TO, to.toString());
+            criteria.put(CRITERIA_PAGE, String.valueOf(page));
+            criteria.put(CRITERIA_PAGE_SIZE, String.valueOf(pageSize));
+            byte[] soapRequest = templates.consultEfact(criteria);
+
+            return transport.post(HttpRequest.BodyPublishers.ofByteArray(soapRequest)).thenApplyAsync(in -> {
+                try (InputStream is = in) {
+                    return SoapResponseReader.readEfacts(is, () -> scratchFile(workDir), sink);
+                } catch (Exception e) {
+                    throw new CompletionException(readFailure(e));
+                }
+            }, transport.responseExecutor());
+        });
     }
 
-    private SOAPMessage sendSoapMessage(SOAPMessage soapRequest) throws Exception {
-        URL endpoint = new URL(config.getTtn().getEndpoint());
-        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
-        connection.setDoOutput(true);
-        connection.setConnectTimeout(config.getTtn().getConnectionTimeoutMs());
-        connection.setReadTimeout(config.getTtn().getReadTimeoutMs());
-
-        try (OutputStream os = connection.getOutputStream()) {
-            soapRequest.writeTo(os);
+    private static Path scratchFile(Path workDir) {
+        try {
+            return Files.createTempFile(workDir, "ttn_", ".part");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new Exception("HTTP " + responseCode);
+    /**
+     * Exécute un appel TTN à travers le disjoncteur puis sous la limite adaptative.
+     * Une réponse de TTN, même un rejet, compte comme un succès: seules les pannes
+     * passagères (timeout, HTTP 408/429/5xx) réduisent la limite et ouvrent le disjoncteur.
+     * Un échec local ({@link TtnLocalException}) n'est compté ni dans un sens ni dans l'autre.
+     */
+    private <T> CompletableFuture<T> guarded(Supplier<CompletableFuture<T>> call) {
+        // Disjoncteur d'abord: TTN indisponible, l'appelant est parqué sans attendre de place
+        TtnCircuitBreaker.Call breakerCall = circuitBreaker.tryAcquire();
+        if (breakerCall == null) {
+            return CompletableFuture.failedFuture(new TtnCircuitOpenException());
         }
 
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        try (InputStream is = connection.getInputStream()) {
-            return messageFactory.createMessage(null, is);
+        TtnConcurrencyLimiter.Permit permit;
+        try {
+            permit = limiter.acquire(config.getTtn().getConnectionTimeoutMs());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            breakerCall.ignore();
+            return CompletableFuture.failedFuture(new TtnException("Interrompu", true, e));
+        }
+        if (permit == null) {
+            // Rend la place d'appel de test (semi-ouvert) à un autre appel
+            breakerCall.ignore();
+            return CompletableFuture.failedFuture(
+                    new TtnException("Limite d'appels TTN simultanés atteinte", true));
         }
-    }
-
-    private String extractSaveEfactResponse(SOAPMessage soapResponse) throws Exception {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        soapResponse.writeTo(out);
-        String response = out.toString("UTF-8");
 
-        SOAPBody body = soapResponse.getSOAPBody();
-        if (body.hasFault()) {
-            SOAPFault fault = body.getFault();
-            return "Erreur: " + fault.getFaultString();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            // Échec avant l'envoi de la requête
+            permit.ignore();
+            breakerCall.ignore();
+            return CompletableFuture.failedFuture(e);
         }
 
-        return response;
+        return future.whenComplete((result, error) -> {
+            Throwable cause = unwrap(error);
+            if (cause instanceof TtnLocalException) {
+                permit.ignore();
+                breakerCall.ignore();
+            } else if (cause == null || (cause instanceof TtnException ttn && !ttn.isRetryable())) {
+                permit.success();
+                breakerCall.success();
+            } else {
+                permit.dropped();
+                breakerCall.failure();
+            }
+        });
     }
 
-    private byte[] extractXmlContent(SOAPMessage soapResponse) {
+    /**
+     * Attend le résultat d'un appel asynchrone en remontant l'erreur TTN d'origine.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws TtnException {
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            soapResponse.writeTo(out);
-            String response = out.toString("UTF-8");
-
-            if (response.contains("<xmlContent>")) {
-                int start = response.indexOf("<xmlContent>") + 12;
-                int end = response.indexOf("</xmlContent>");
-                String base64Content = response.substring(start, end).trim();
-                return Base64.getDecoder().decode(base64Content);
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof TtnException ttn) {
+                throw ttn;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
             }
+            throw new TtnException("Erreur TTN: " + cause.getMessage(), false, cause);
+        }
+    }
 
-            return null;
-        } catch (Exception e) {
-            log.error("Erreur extraction XML: {}", e.getMessage());
-            return null;
+    public static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
         }
+        return cause;
     }
 
-    private String extractReference(String response) {
+    private static void deleteQuietly(Path path) {
         try {
-            if (response.contains("idSaveEfact")) {
-                int start = response.indexOf("<idSaveEfact>") + 13;
-                int end = response.indexOf("</idSaveEfact>");
-                if (start > 0 && end > start) {
-                    return response.substring(start, end).trim();
-                }
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Suppression impossible: {}", path);
+        }
+    }
+
+    /**
+     * Envoie la requête et lit la réponse en flux, en une seule passe.
+     *
+     * @param xmlContentTarget reçoit le contenu xmlContent décodé (null: ignoré)
+     */
+    private CompletableFuture<SoapResponseReader.Result> send(HttpRequest.BodyPublisher requestBody,
+                                                              Path xmlContentTarget) {
+        // Lecture bloquante (StAX, décodage sur disque): sur le pool des réponses TTN
+        return transport.post(requestBody).thenApplyAsync(body -> {
+            try (InputStream is = body) {
+                return SoapResponseReader.read(is, xmlContentTarget);
+            } catch (Exception e) {
+                throw new CompletionException(readFailure(e));
             }
-            return "REF_" + System.currentTimeMillis();
-        } catch (Exception e) {
-            return "REF_" + System.currentTimeMillis();
+        }, transport.responseExecutor());
+    }
+
+    /**
+     * Erreur de lecture d'une réponse: StAX signale les erreurs du flux HTTP (réponse
+     * tronquée, XML invalide); une IOException directe vient de l'écriture du
+     * xmlContent décodé sur le disque local.
+     */
+    private static TtnException readFailure(Exception e) {
+        if (e instanceof IOException || e instanceof UncheckedIOException) {
+            return new TtnLocalException("Écriture XML TTN impossible: " + e.getMessage(), e);
         }
+        return new TtnException("Réponse TTN illisible: " + e.getMessage(), true, e);
+    }
+
+    @FunctionalInterface
+    private interface RequestBody {
+        HttpRequest.BodyPublisher open() throws IOException;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+package tn.facturation.ttn.service;
+
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+/**
+ * Parsing DOM partagé: un DocumentBuilder (namespace aware) réutilisé par thread,
+ * au lieu d'une nouvelle factory à chaque facture.
+ */
+public final class XmlDocuments {
+
+    private static final DocumentBuilderFactory FACTORY = createFactory();
+
+    private static final ThreadLocal<DocumentBuilder> BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            return FACTORY.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("DocumentBuilder indisponible", e);
+        }
+    });
+
+    private XmlDocuments() {
+    }
+
+    public static Document parse(byte[] content) throws Exception {
+        DocumentBuilder builder = BUILDER.get();
+        try {
+            return builder.parse(new ByteArrayInputStream(content));
+        } finally {
+            builder.reset();
+        }
+    }
+
+    public static Document parse(File file) throws Exception {
+        DocumentBuilder builder = BUILDER.get();
+        try {
+            return builder.parse(file);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    private static DocumentBuilderFactory createFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory;
+    }
+}
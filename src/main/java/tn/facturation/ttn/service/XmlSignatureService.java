@@ -1,5 +1,6 @@
 package tn.facturation.ttn.service;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.xml.security.Init;
@@ -11,45 +12,120 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import tn.facturation.ttn.config.AppProperties;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Enumeration;
-import java.util.TimeZone;
 
+/**
+ * Signature XMLDSig/XAdES avec un certificat logiciel (PKCS#12 ou JKS,
+ * app.certificate.path / type / password / alias), sans token.
+ *
+ * Le service est partagé par tous les workers de l'étape sign: la clé et le
+ * certificat sont chargés une seule fois puis publiés ensemble (lecture sans
+ * verrou), et chaque thread réutilise son parser et son Transformer. Les
+ * signatures se font donc en parallèle, au rythme des cœurs disponibles.
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class XmlSignatureService {
 
+    private static final DateTimeFormatter SIGNING_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final long LOAD_RETRY_INITIAL_MS = 5000;
+    private static final long LOAD_RETRY_MAX_MS = 300000;
+
+    // Un Transformer n'est pas thread-safe: un par thread, remis à zéro après usage
+    private static final ThreadLocal<Transformer> TRANSFORMER = ThreadLocal.withInitial(() -> {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            return transformer;
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("Transformer indisponible", e);
+        }
+    });
+
     private final AppProperties config;
 
-    private KeyStore keyStore;
-    private PrivateKey privateKey;
-    private X509Certificate certificate;
-    private boolean initialized = false;
+    // Chargé une fois (null tant que le certificat n'a pas pu être chargé)
+    private volatile KeyMaterial keyMaterial;
+
+    // Après un échec de chargement: pas de nouvel essai avant cette date (délai doublé
+    // à chaque échec), les signatures entre-temps échouent sans toucher au keystore
+    private volatile long retryAtMillis;
+    private long retryDelayMs = LOAD_RETRY_INITIAL_MS;
+    private boolean loadFailed;
+
+    /**
+     * Clé, certificat et empreinte du certificat (SigningCertificateV2), immuables.
+     */
+    private record KeyMaterial(PrivateKey privateKey, X509Certificate certificate, String certificateDigest) {
+    }
+
+    /**
+     * Charge le keystore dès le démarrage quand il remplace les tokens PKCS#11,
+     * pour signaler un certificat illisible avant la première facture.
+     */
+    @PostConstruct
+    public void init() {
+        if (config.getCertificate().useKeyStore() && keyMaterial() == null) {
+            log.error("Certificat logiciel non chargé: les factures seront mises en erreur à la signature");
+        }
+    }
 
     public boolean signXmlFile(File inputFile, File outputFile) {
-        if (!ensureInitialized()) {
+        try {
+            byte[] signed = signXml(Files.readAllBytes(inputFile.toPath()));
+            if (signed == null) {
+                return false;
+            }
+            Files.write(outputFile.toPath(), signed);
+            return true;
+
+        } catch (IOException e) {
+            log.error("Erreur signature {}: {}", inputFile.getName(), e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Signe un XML en mémoire et retourne le XML signé (aucun accès disque).
+     *
+     * @return le XML signé, ou null en cas d'échec
+     */
+    public byte[] signXml(byte[] content) {
+        if (!isConfigured()) {
             log.warn("Mode TEST: Signature MOCK utilisée (certificat non configuré)");
-            return signMock(inputFile, outputFile);
+            return signMock(content);
+        }
+
+        KeyMaterial key = keyMaterial();
+        if (key == null) {
+            // Certificat configuré mais illisible: jamais de signature MOCK à la place
+            log.error("Signature impossible: certificat {} non chargé", config.getCertificate().getPath());
+            return null;
         }
 
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(inputFile);
+            Document doc = XmlDocuments.parse(content);
 
             Element root = doc.getDocumentElement();
             XMLSignature signature = new XMLSignature(
@@ -76,24 +152,24 @@ public class XmlSignatureService {
 
             signature.addDocument("", transforms, "http://www.w3.org/2001/04/xmlenc#sha256");
 
-            addXAdESElements(doc, signature);
+            addXAdESElements(doc, signature, key);
 
-            signature.addKeyInfo(certificate);
+            signature.addKeyInfo(key.certificate());
 
-            signature.sign(privateKey);
+            signature.sign(key.privateKey());
 
-            saveDocument(doc, outputFile);
+            byte[] signed = serialize(doc);
 
             log.info("Fichier signé avec succès");
-            return true;
+            return signed;
 
         } catch (Exception e) {
             log.error("Erreur signature: {}", e.getMessage(), e);
-            return false;
+            return null;
         }
     }
 
-    private void addXAdESElements(Document doc, XMLSignature signature) {
+    private void addXAdESElements(Document doc, XMLSignature signature, KeyMaterial key) {
         try {
             String xadesNS = "http://uri.etsi.org/01903/v1.3.2#";
 
@@ -106,9 +182,7 @@ public class XmlSignatureService {
             Element signedSigProps = doc.createElementNS(xadesNS, "xades:SignedSignatureProperties");
 
             Element signingTime = doc.createElementNS(xadesNS, "xades:SigningTime");
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            signingTime.setTextContent(sdf.format(new Date()));
+            signingTime.setTextContent(SIGNING_TIME.format(Instant.now()));
             signedSigProps.appendChild(signingTime);
 
             Element signingCert = doc.createElementNS(xadesNS, "xades:SigningCertificateV2");
@@ -120,7 +194,7 @@ public class XmlSignatureService {
             certDigest.appendChild(digestMethod);
 
             Element digestValue = doc.createElementNS("http://www.w3.org/2000/09/xmldsig#", "ds:DigestValue");
-            digestValue.setTextContent(calculateCertDigest(certificate));
+            digestValue.setTextContent(key.certificateDigest());
             certDigest.appendChild(digestValue);
             cert.appendChild(certDigest);
 
@@ -167,85 +241,130 @@ public class XmlSignatureService {
         }
     }
 
-    private boolean ensureInitialized() {
-        if (initialized) {
-            return true;
+    /**
+     * Certificat logiciel configuré (app.certificate.path); sinon signature MOCK.
+     */
+    public boolean isConfigured() {
+        String certPath = config.getCertificate().getPath();
+        return certPath != null && !certPath.isEmpty();
+    }
+
+    /**
+     * Clé chargée et prête à signer (charge le keystore au premier appel).
+     */
+    public boolean isReady() {
+        return isConfigured() && keyMaterial() != null;
+    }
+
+    /**
+     * Clé et certificat, chargés au premier appel: seul ce chargement est
+     * synchronisé, les signatures suivantes lisent le champ volatile sans verrou.
+     * Après un échec le chargement n'est retenté qu'une fois le délai écoulé.
+     */
+    private KeyMaterial keyMaterial() {
+        KeyMaterial loaded = keyMaterial;
+        if (loaded != null || System.currentTimeMillis() < retryAtMillis) {
+            return loaded;
         }
+        synchronized (this) {
+            if (keyMaterial == null && System.currentTimeMillis() >= retryAtMillis) {
+                keyMaterial = load(!loadFailed);
+                if (keyMaterial == null) {
+                    loadFailed = true;
+                    retryAtMillis = System.currentTimeMillis() + retryDelayMs;
+                    log.warn("Nouvel essai de chargement du certificat dans {} ms", retryDelayMs);
+                    retryDelayMs = Math.min(LOAD_RETRY_MAX_MS, retryDelayMs * 2);
+                }
+            }
+            return keyMaterial;
+        }
+    }
 
+    /**
+     * @param firstAttempt trace complète de l'exception au premier échec seulement
+     */
+    private KeyMaterial load(boolean firstAttempt) {
         Init.init();
 
-        String certPath = config.getCertificate().getPath();
-        String password = config.getCertificate().getPassword();
-
-        if (certPath == null || certPath.isEmpty()) {
-            log.warn("Certificat non configuré");
-            return false;
-        }
+        AppProperties.Certificate settings = config.getCertificate();
+        String certPath = settings.getPath();
+        char[] password = settings.getPassword() != null ? settings.getPassword().toCharArray() : new char[0];
 
         try {
             File certFile = new File(certPath);
             if (!certFile.exists()) {
                 log.error("Certificat introuvable: {}", certPath);
-                return false;
+                return null;
             }
 
-            keyStore = KeyStore.getInstance("PKCS12");
-            try (FileInputStream fis = new FileInputStream(certFile)) {
-                keyStore.load(fis, password.toCharArray());
+            // Type explicite (PKCS12, JKS) ou détecté d'après le contenu du fichier
+            KeyStore keyStore;
+            String type = settings.getType();
+            if (type == null || type.isEmpty()) {
+                keyStore = KeyStore.getInstance(certFile, password);
+            } else {
+                keyStore = KeyStore.getInstance(type);
+                try (FileInputStream fis = new FileInputStream(certFile)) {
+                    keyStore.load(fis, password);
+                }
             }
 
-            String alias = config.getCertificate().getAlias();
+            String alias = settings.getAlias();
             if (alias == null || alias.isEmpty()) {
+                alias = null;
                 Enumeration<String> aliases = keyStore.aliases();
-                if (aliases.hasMoreElements()) {
-                    alias = aliases.nextElement();
+                while (alias == null && aliases.hasMoreElements()) {
+                    String candidate = aliases.nextElement();
+                    if (keyStore.isKeyEntry(candidate)) {
+                        alias = candidate;
+                    }
                 }
             }
 
             if (alias != null) {
-                privateKey = (PrivateKey) keyStore.getKey(alias, password.toCharArray());
-                certificate = (X509Certificate) keyStore.getCertificate(alias);
+                PrivateKey privateKey = (PrivateKey) keyStore.getKey(alias, password);
+                X509Certificate certificate = (X509Certificate) keyStore.getCertificate(alias);
 
                 if (privateKey != null && certificate != null) {
-                    log.info("Certificat chargé");
+                    log.info("Certificat chargé ({})", keyStore.getType());
                     log.info("  Sujet: {}", certificate.getSubjectX500Principal());
                     log.info("  Valide jusqu'au: {}", certificate.getNotAfter());
 
                     certificate.checkValidity();
 
-                    initialized = true;
-                    return true;
+                    return new KeyMaterial(privateKey, certificate, calculateCertDigest(certificate));
                 }
             }
 
             log.error("Impossible de charger le certificat");
-            return false;
+            return null;
 
         } catch (Exception e) {
-            log.error("Erreur chargement certificat: {}", e.getMessage(), e);
-            return false;
+            if (firstAttempt) {
+                log.error("Erreur chargement certificat: {}", e.getMessage(), e);
+            } else {
+                log.error("Erreur chargement certificat: {}", e.getMessage());
+            }
+            return null;
         }
     }
 
-    private boolean signMock(File inputFile, File outputFile) {
+    private byte[] signMock(byte[] content) {
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(inputFile);
+            Document doc = XmlDocuments.parse(content);
 
             Element root = doc.getDocumentElement();
             Element signature = createMockSignature(doc);
             root.appendChild(signature);
 
-            saveDocument(doc, outputFile);
+            byte[] signed = serialize(doc);
 
             log.warn("Signature MOCK ajoutée (TESTS UNIQUEMENT)");
-            return true;
+            return signed;
 
         } catch (Exception e) {
             log.error("Erreur signature MOCK: {}", e.getMessage(), e);
-            return false;
+            return null;
         }
     }
 
@@ -265,11 +384,16 @@ public class XmlSignatureService {
         return signature;
     }
 
-    private void saveDocument(Document doc, File outputFile) throws Exception {
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer trans = tf.newTransformer();
-        trans.setOutputProperty("encoding", "UTF-8");
-        trans.transform(new DOMSource(doc), new StreamResult(outputFile));
+    private byte[] serialize(Document doc) throws TransformerException {
+        Transformer transformer = TRANSFORMER.get();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            transformer.transform(new DOMSource(doc), new StreamResult(output));
+        } finally {
+            transformer.reset();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        }
+        return output.toByteArray();
     }
 
     private String calculateCertDigest(X509Certificate cert) {
@@ -3,9 +3,12 @@ package tn.facturation.ttn.service;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Service;
+import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
@@ -18,6 +21,9 @@ public class XmlValidationService {
 
     private Schema schema;
 
+    // Validator n'est pas thread-safe: un par worker, réutilisé entre factures
+    private final ThreadLocal<Validator> validators = ThreadLocal.withInitial(() -> schema.newValidator());
+
     public XmlValidationService() {
         try {
             SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
@@ -30,15 +36,26 @@ public class XmlValidationService {
     }
 
     public boolean validate(File xmlFile) {
+        return validate(new StreamSource(xmlFile), xmlFile.getName());
+    }
+
+    /**
+     * Valide un document déjà parsé (évite de relire et reparser le fichier).
+     */
+    public boolean validate(Document document, String name) {
+        return validate(new DOMSource(document), name);
+    }
+
+    private boolean validate(Source source, String name) {
         if (schema == null) {
             log.debug("Validation XSD désactivée");
             return true;
         }
 
+        Validator validator = validators.get();
         try {
-            Validator validator = schema.newValidator();
-            validator.validate(new StreamSource(xmlFile));
-            log.debug("Validation XSD OK: {}", xmlFile.getName());
+            validator.validate(source);
+            log.debug("Validation XSD OK: {}", name);
             return true;
         } catch (SAXException e) {
             log.error("Validation XSD échouée: {}", e.getMessage());
@@ -46,6 +63,8 @@ public class XmlValidationService {
         } catch (Exception e) {
             log.error("Erreur validation: {}", e.getMessage());
             return false;
+        } finally {
+            validator.reset();
         }
     }
 }
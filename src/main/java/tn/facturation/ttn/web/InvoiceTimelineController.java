@@ -0,0 +1,42 @@
+package tn.facturation.ttn.web;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import tn.facturation.ttn.pipeline.InvoiceTrace;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chronologie d'une facture: attente en file et temps de service par étape,
+ * lus dans le tampon en mémoire (InvoiceTrace), sans parcourir les logs.
+ */
+@RestController
+@RequestMapping("/api/invoices")
+@RequiredArgsConstructor
+public class InvoiceTimelineController {
+
+    private final InvoiceTrace trace;
+
+    /**
+     * Passages de la facture dans le pipeline (un par soumission), le plus récent
+     * en dernier. 404 si la facture n'est plus dans le tampon.
+     */
+    @GetMapping("/{number}/timeline")
+    public ResponseEntity<Map<String, Object>> timeline(@PathVariable String number) {
+        List<Map<String, Object>> traces = trace.timeline(number);
+        if (traces.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("invoiceNumber", number);
+        body.put("traces", traces);
+        return ResponseEntity.ok(body);
+    }
+}
@@ -7,7 +7,14 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import tn.facturation.ttn.config.AppProperties;
-import tn.facturation.ttn.service.TtnSoapClientService;
+import tn.facturation.ttn.pipeline.InvoicePipeline;
+import tn.facturation.ttn.pipeline.OutboundBuffer;
+import tn.facturation.ttn.service.InvoiceStepMetrics;
+import tn.facturation.ttn.service.Pkcs11XmlSignatureService;
+import tn.facturation.ttn.service.XmlSignatureService;
+import tn.facturation.ttn.service.TtnCircuitBreaker;
+import tn.facturation.ttn.service.TtnConcurrencyLimiter;
+import tn.facturation.ttn.service.TtnHealthProber;
 
 import java.io.File;
 import java.time.LocalDateTime;
@@ -25,7 +32,14 @@ import java.util.Map;
 public class MonitoringController {
 
     private final AppProperties config;
-    private final TtnSoapClientService ttnClient;
+    private final TtnHealthProber healthProber;
+    private final InvoicePipeline pipeline;
+    private final TtnCircuitBreaker circuitBreaker;
+    private final OutboundBuffer outboundBuffer;
+    private final TtnConcurrencyLimiter limiter;
+    private final InvoiceStepMetrics stepMetrics;
+    private final Pkcs11XmlSignatureService signatureService;
+    private final XmlSignatureService keyStoreSignatureService;
     private final MeterRegistry meterRegistry;
     private final LocalDateTime startTime = LocalDateTime.now();
 
@@ -180,6 +194,7 @@ public class MonitoringController {
                         <div class="endpoint">GET /api/status - Statut du service</div>
                         <div class="endpoint">GET /api/metrics - Métriques détaillées</div>
                         <div class="endpoint">GET /api/health - Health check</div>
+                        <div class="endpoint">GET /api/invoices/{numero}/timeline - Chronologie d'une facture</div>
                         <div class="endpoint">GET /actuator/health - Spring Actuator</div>
                     </div>
                     
@@ -284,20 +299,35 @@ public class MonitoringController {
         folders.put("qrcode", getFolderInfo(config.getFolders().getQrcode()));
         folders.put("errors", getFolderInfo(config.getFolders().getErrors()));
         status.put("folders", folders);
+
+        // Pipeline: profondeur de file et temps de service par étape
+        status.put("pipeline", pipeline.getStageStats());
+
+        // Pool de signature: latence, occupation et isolement par token
+        Map<String, Object> signature = new HashMap<>();
+        if (config.getCertificate().useKeyStore()) {
+            signature.put("mode", "keystore");
+            signature.put("ready", keyStoreSignatureService.isReady());
+        } else {
+            signature.put("mode", "pkcs11");
+            signature.put("ready", signatureService.isReady());
+            signature.put("tokens", signatureService.snapshot());
+        }
+        status.put("signature", signature);
         
         // TTN
         Map<String, Object> ttn = new HashMap<>();
         ttn.put("enabled", config.getTtn().isEnabled());
         ttn.put("endpoint", config.getTtn().getEndpoint());
+
+        Map<String, Object> circuit = circuitBreaker.snapshot();
+        circuit.put("buffered", outboundBuffer.size());
+        ttn.put("circuit", circuit);
+        ttn.put("limiter", limiter.snapshot());
         
         if (config.getTtn().isEnabled()) {
-            try {
-                boolean connected = ttnClient.testConnection();
-                ttn.put("connected", connected);
-            } catch (Exception e) {
-                ttn.put("connected", false);
-                ttn.put("error", e.getMessage());
-            }
+            // Résultat du dernier test en tâche de fond: aucun appel TTN ici
+            ttn.putAll(healthProber.snapshot());
         }
         status.put("ttn", ttn);
         
@@ -320,6 +350,9 @@ public class MonitoringController {
         metrics.put("count", timer.count());
         metrics.put("avgTime", timer.count() > 0 ? (long)timer.mean(java.util.concurrent.TimeUnit.MILLISECONDS) : 0);
         metrics.put("maxTime", (long)timer.max(java.util.concurrent.TimeUnit.MILLISECONDS));
+
+        // Détail par étape: temps (percentiles) par résultat et échecs par cause
+        metrics.put("steps", stepMetrics.snapshot());
         
         return ResponseEntity.ok(metrics);
     }
@@ -0,0 +1,123 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Roue temporelle des consultations TTN, avancée case par case à la main.
+ */
+class ConsultSchedulerTest {
+
+    // Tick 100 ms, 4 cases: délais 100, 200, 400, 800 ms... soit 1, 2, 4, 8 ticks
+    private final ConsultScheduler scheduler = scheduler(4, 100, 100, 2.0, 10_000, 3_600_000);
+    private final List<String> polled = new ArrayList<>();
+
+    private static ConsultScheduler scheduler(int wheelSize, long tickMs, long initialDelayMs,
+                                              double multiplier, long maxDelayMs, long maxWaitMs) {
+        AppProperties config = new AppProperties();
+        AppProperties.ConsultPolling settings = config.getTtn().getConsultPolling();
+        settings.setWheelSize(wheelSize);
+        settings.setTickMs(tickMs);
+        settings.setInitialDelayMs(initialDelayMs);
+        settings.setMultiplier(multiplier);
+        settings.setMaxDelayMs(maxDelayMs);
+        settings.setMaxWaitMs(maxWaitMs);
+        return new ConsultScheduler(config, new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void stop() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void delayGrowsExponentiallyUpToMaximum() {
+        ConsultScheduler capped = scheduler(4, 100, 100, 2.0, 500, 3_600_000);
+        try {
+            assertEquals(100, capped.nextDelay(1));
+            assertEquals(200, capped.nextDelay(2));
+            assertEquals(400, capped.nextDelay(3));
+            assertEquals(500, capped.nextDelay(4));
+            assertEquals(500, capped.nextDelay(30));
+        } finally {
+            capped.shutdown();
+        }
+    }
+
+    @Test
+    void invoicesFireInDelayOrder() {
+        schedule("F1", 0);
+        schedule("F2", 1);
+        schedule("F3", 2);
+        assertEquals(3, scheduler.getPendingCount());
+
+        scheduler.tick();
+        assertEquals(List.of("F1"), polled);
+        scheduler.tick();
+        assertEquals(List.of("F1", "F2"), polled);
+        scheduler.tick();
+        scheduler.tick();
+        assertEquals(List.of("F1", "F2", "F3"), polled);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    void delayLongerThanWheelWaitsExtraRounds() {
+        // 4e consultation: 800 ms = 8 ticks = deux tours d'une roue de 4 cases
+        InvoiceContext context = schedule("F1", 3);
+        assertEquals(4, context.getConsultPolls());
+
+        for (int i = 1; i < 8; i++) {
+            scheduler.tick();
+            assertTrue(polled.isEmpty(), "tick " + i);
+        }
+        scheduler.tick();
+        assertEquals(List.of("F1"), polled);
+    }
+
+    @Test
+    void claimedInvoiceIsNotPolled() {
+        InvoiceContext context = schedule("F1", 0);
+        schedule("F2", 0);
+
+        assertSame(context, scheduler.claim("F1"));
+        assertNull(scheduler.claim("F1"));
+        assertEquals(Set.of("F2"), scheduler.pendingInvoices());
+
+        scheduler.tick();
+        assertEquals(List.of("F2"), polled);
+    }
+
+    @Test
+    void refusesOnceMaxWaitIsExceeded() {
+        ConsultScheduler strict = scheduler(4, 100, 100, 2.0, 10_000, 1000);
+        try {
+            InvoiceContext context = new InvoiceContext(new File("F1.xml"), "F1");
+            assertTrue(strict.schedule(context, () -> { }));
+
+            context.setConsultSinceNanos(System.nanoTime() - TimeUnit.SECONDS.toNanos(2));
+            assertFalse(strict.schedule(context, () -> { }));
+            assertEquals(1, context.getConsultPolls());
+        } finally {
+            strict.shutdown();
+        }
+    }
+
+    private InvoiceContext schedule(String invoiceNumber, int previousPolls) {
+        InvoiceContext context = new InvoiceContext(new File(invoiceNumber + ".xml"), invoiceNumber);
+        context.setConsultPolls(previousPolls);
+        context.setConsultSinceNanos(System.nanoTime());
+        assertTrue(scheduler.schedule(context, () -> polled.add(invoiceNumber)));
+        return context;
+    }
+}
@@ -0,0 +1,154 @@
+package tn.facturation.ttn.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Rejeu et compaction du journal des factures.
+ */
+class InvoiceJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void replayResumesFromLastCheckpoint() throws Exception {
+        File input = inputFile("F1");
+        File signed = Files.writeString(tempDir.resolve("F1_signed.xml"), "<signed/>").toFile();
+
+        InvoiceJournal journal = open();
+        InvoiceContext context = new InvoiceContext(input, "F1");
+        journal.record(context, InvoiceJournal.State.RECEIVED);
+        journal.record(context, InvoiceJournal.State.VALIDATED);
+        context.setSignedFile(signed);
+        journal.record(context, InvoiceJournal.State.SIGNED);
+        journal.close();
+
+        InvoiceJournal.Checkpoint checkpoint = open().checkpoint("F1");
+        assertNotNull(checkpoint);
+        assertEquals(InvoiceJournal.State.SIGNED, checkpoint.state());
+        assertEquals(input.getAbsolutePath(), checkpoint.inputFile());
+        assertEquals(signed.getAbsolutePath(), checkpoint.signedFile());
+    }
+
+    @Test
+    void truncatedLastLineIsIgnored() throws Exception {
+        String input = inputFile("F1").getAbsolutePath();
+        writeJournal(
+                line("F1", "SIGNED", input, "/tmp/F1_signed.xml", "-", "-"),
+                "1700000000000\tF1\tSUBMI");
+
+        InvoiceJournal journal = open();
+        assertEquals(InvoiceJournal.State.SIGNED, journal.checkpoint("F1").state());
+
+        // La compaction a réécrit le journal sans la ligne tronquée, la suite s'y ajoute
+        journal.record(new InvoiceContext(new File(input), "F1"), InvoiceJournal.State.SENDING);
+        journal.close();
+        assertEquals(List.of("SIGNED", "SENDING"), states(Files.readAllLines(journalFile())));
+        assertEquals(InvoiceJournal.State.SENDING, open().checkpoint("F1").state());
+    }
+
+    @Test
+    void compactionKeepsOnlyOpenInvoices() throws Exception {
+        String first = inputFile("F1").getAbsolutePath();
+        String second = inputFile("F2").getAbsolutePath();
+        String third = inputFile("F3").getAbsolutePath();
+        writeJournal(
+                line("F1", "RECEIVED", first, "-", "-", "-"),
+                line("F2", "RECEIVED", second, "-", "-", "-"),
+                line("F3", "RECEIVED", third, "-", "-", "-"),
+                line("F1", "DONE", first, "-", "-", "-"),
+                line("F2", "SUBMITTED", second, "/tmp/F2_signed.xml", "TTN2", "-"),
+                line("F3", "FAILED", third, "-", "-", "-"));
+
+        InvoiceJournal journal = open();
+        journal.close();
+
+        assertNull(journal.checkpoint("F1"));
+        assertNull(journal.checkpoint("F3"));
+        InvoiceJournal.Checkpoint checkpoint = journal.checkpoint("F2");
+        assertEquals(InvoiceJournal.State.SUBMITTED, checkpoint.state());
+        assertEquals("TTN2", checkpoint.ttnReference());
+        assertEquals(List.of("SUBMITTED"), states(Files.readAllLines(journalFile())));
+    }
+
+    @Test
+    void compactionDropsInvoicesWhoseInputFileIsGone() throws Exception {
+        String kept = inputFile("F1").getAbsolutePath();
+        String gone = tempDir.resolve("F2.xml").toString();
+        writeJournal(
+                line("F1", "SIGNED", kept, "/tmp/F1_signed.xml", "-", "-"),
+                line("F2", "SIGNED", gone, "/tmp/F2_signed.xml", "-", "-"),
+                line("F3", "VALIDATED", "-", "-", "-", "-"));
+
+        InvoiceJournal journal = open();
+        journal.close();
+
+        assertNotNull(journal.checkpoint("F1"));
+        assertNull(journal.checkpoint("F2"));
+        assertNull(journal.checkpoint("F3"));
+        assertEquals(1, Files.readAllLines(journalFile()).size());
+    }
+
+    @Test
+    void statesDoNotStepBackButReceivedRestarts() throws Exception {
+        String input = inputFile("F1").getAbsolutePath();
+        writeJournal(
+                line("F1", "SENDING", input, "/tmp/F1_signed.xml", "-", "-"),
+                // Transition plus ancienne écrite en retard: ne fait pas reculer la facture
+                line("F1", "SIGNED", input, "-", "-", "-"));
+
+        InvoiceJournal.Checkpoint checkpoint = open().checkpoint("F1");
+        assertEquals(InvoiceJournal.State.SENDING, checkpoint.state());
+        assertEquals("/tmp/F1_signed.xml", checkpoint.signedFile());
+
+        writeJournal(
+                line("F1", "SENDING", input, "/tmp/F1_signed.xml", "-", "-"),
+                line("F1", "RECEIVED", input, "-", "-", "-"));
+
+        checkpoint = open().checkpoint("F1");
+        assertEquals(InvoiceJournal.State.RECEIVED, checkpoint.state());
+        assertNull(checkpoint.signedFile());
+    }
+
+    private InvoiceJournal open() {
+        AppProperties config = new AppProperties();
+        config.getJournal().setFile(journalFile().toString());
+        config.getJournal().setSync(false);
+        InvoiceJournal journal = new InvoiceJournal(config);
+        journal.init();
+        return journal;
+    }
+
+    private Path journalFile() {
+        return tempDir.resolve("journal").resolve("factures.journal");
+    }
+
+    private File inputFile(String invoiceNumber) throws IOException {
+        return Files.writeString(tempDir.resolve(invoiceNumber + ".xml"), "<facture/>").toFile();
+    }
+
+    private void writeJournal(String... lines) throws IOException {
+        Files.createDirectories(journalFile().getParent());
+        Files.write(journalFile(), List.of(lines), StandardCharsets.UTF_8);
+    }
+
+    private static String line(String invoiceNumber, String state, String input,
+                               String signed, String reference, String ttnFile) {
+        return String.join("\t", "1700000000000", invoiceNumber, state, input, signed, reference, ttnFile);
+    }
+
+    private static List<String> states(List<String> lines) {
+        return lines.stream().map(line -> line.split("\t")[2]).toList();
+    }
+}
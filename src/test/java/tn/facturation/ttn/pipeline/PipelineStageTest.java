@@ -0,0 +1,111 @@
+package tn.facturation.ttn.pipeline;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * File bornée d'une étape du pipeline.
+ */
+class PipelineStageTest {
+
+    private static PipelineStage stage(int workers, int queueCapacity) {
+        AppProperties.Stage settings = new AppProperties.Stage();
+        settings.setWorkers(workers);
+        settings.setQueueCapacity(queueCapacity);
+        return new PipelineStage("test", settings, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void fullQueueBlocksStageWorkerUntilAPlaceFrees() throws Exception {
+        PipelineStage upstream = stage(1, 1);
+        PipelineStage stage = stage(1, 1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        CompletableFuture<Void> handedOver = new CompletableFuture<>();
+        try {
+            fill(stage, unblock);
+
+            // Worker d'une étape précédente, file pleine: il attend sa place
+            upstream.submit(() -> {
+                stage.submit(() -> { });
+                handedOver.complete(null);
+            });
+            assertThrows(TimeoutException.class, () -> handedOver.get(200, TimeUnit.MILLISECONDS));
+
+            unblock.countDown();
+            handedOver.get(5, TimeUnit.SECONDS);
+        } finally {
+            unblock.countDown();
+            upstream.shutdown(5000);
+            stage.shutdown(5000);
+        }
+    }
+
+    @Test
+    void fullQueueNeverBlocksOtherCallers() throws Exception {
+        PipelineStage stage = stage(1, 1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch overflowRan = new CountDownLatch(2);
+        try {
+            fill(stage, unblock);
+
+            // Suite asynchrone ou timer: rendu immédiat, la tâche passe en débordement
+            stage.submit(overflowRan::countDown);
+            stage.submit(overflowRan::countDown);
+            assertEquals(2, stage.getOverflowDepth());
+
+            unblock.countDown();
+            assertTrue(overflowRan.await(5, TimeUnit.SECONDS));
+            assertEquals(0, stage.getOverflowDepth());
+        } finally {
+            unblock.countDown();
+            stage.shutdown(5000);
+        }
+    }
+
+    @Test
+    void shutdownDrainsQueueThenRejects() {
+        PipelineStage stage = stage(1, 10);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            stage.submit(done::incrementAndGet);
+        }
+
+        stage.shutdown(5000);
+
+        assertEquals(5, done.get());
+        assertEquals(5L, stage.snapshot().get("processed"));
+        assertThrows(RejectedExecutionException.class, () -> stage.submit(done::incrementAndGet));
+    }
+
+    /**
+     * Occupe l'unique worker jusqu'à {@code unblock} et remplit la file.
+     */
+    private static void fill(PipelineStage stage, CountDownLatch unblock) throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        stage.submit(() -> {
+            running.countDown();
+            await(unblock);
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        stage.submit(() -> { });
+        assertEquals(1, stage.getQueueDepth());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package tn.facturation.ttn.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Corps saveEfact en flux: longueur annoncée = octets réellement envoyés.
+ */
+class SaveEfactRequestBodyTest {
+
+    private final SoapEnvelopeTemplates templates = new SoapEnvelopeTemplates("login", "p&ss", "0000000A");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void inMemoryBodyMatchesAnnouncedLength() throws Exception {
+        // Tailles couvrant les trois restes possibles de l'encodage Base64
+        for (int size : new int[]{0, 1, 2, 3, 8191, 8192, 100_001}) {
+            byte[] signedXml = randomBytes(size);
+            HttpRequest.BodyPublisher body = SaveEfactRequestBody.of(templates, signedXml);
+
+            byte[] sent = drain(body);
+            assertEquals(body.contentLength(), sent.length, "taille " + size);
+            assertArrayEquals(signedXml, document(sent));
+        }
+    }
+
+    @Test
+    void fileBodyMatchesAnnouncedLength() throws Exception {
+        byte[] signedXml = randomBytes(50_002);
+        Path signedFile = Files.write(tempDir.resolve("FAC-1_signed.xml"), signedXml);
+        HttpRequest.BodyPublisher body = SaveEfactRequestBody.of(templates, signedFile);
+
+        byte[] sent = drain(body);
+        assertEquals(body.contentLength(), sent.length);
+        assertArrayEquals(signedXml, document(sent));
+    }
+
+    @Test
+    void bodyCanBeSentTwice() throws Exception {
+        byte[] signedXml = randomBytes(1000);
+        HttpRequest.BodyPublisher body = SaveEfactRequestBody.of(templates, signedXml);
+
+        assertArrayEquals(drain(body), drain(body));
+    }
+
+    private byte[] document(byte[] sent) {
+        String envelope = new String(sent, StandardCharsets.US_ASCII);
+        String prefix = new String(templates.saveEfactPrefix(), StandardCharsets.UTF_8);
+        String suffix = new String(templates.saveEfactSuffix(), StandardCharsets.UTF_8);
+        assertTrue(envelope.startsWith(prefix));
+        assertTrue(envelope.endsWith(suffix));
+        return Base64.getDecoder().decode(envelope.substring(prefix.length(), envelope.length() - suffix.length()));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] drain(HttpRequest.BodyPublisher body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<byte[]> done = new CompletableFuture<>();
+        body.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                out.writeBytes(chunk);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(out.toByteArray());
+            }
+        });
+        return done.get();
+    }
+}
@@ -0,0 +1,157 @@
+package tn.facturation.ttn.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Lecture en flux des réponses SOAP TTN.
+ */
+class SoapResponseReaderTest {
+
+    private static final String SOAP_11 = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String SOAP_12 = "http://www.w3.org/2003/05/soap-envelope";
+    private static final String INVOICE = "<TEIF><InvoiceHeader>Facture é</InvoiceHeader></TEIF>";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsReferenceAndStatus() throws Exception {
+        SoapResponseReader.Result result = SoapResponseReader.read(stream(envelope(SOAP_11,
+                "<ns2:saveEfactResponse xmlns:ns2=\"http://services.elfatoura.tradenet.com.tn/\"><return>"
+                        + "<status>Facture enregistrée</status><idSaveEfact> TTN42 </idSaveEfact>"
+                        + "</return></ns2:saveEfactResponse>")), null);
+
+        assertNull(result.fault());
+        assertEquals("TTN42", result.idSaveEfact());
+        assertEquals("Facture enregistrée", result.status());
+        assertFalse(result.hasContent());
+    }
+
+    @Test
+    void readsSoap11Fault() throws Exception {
+        SoapResponseReader.Result result = SoapResponseReader.read(stream(envelope(SOAP_11,
+                "<soap:Fault><faultcode>soap:Server</faultcode>"
+                        + "<faultstring>Matricule fiscal invalide</faultstring></soap:Fault>")), null);
+
+        assertEquals("Matricule fiscal invalide", result.fault());
+        assertEquals("", result.status());
+    }
+
+    @Test
+    void readsSoap12Fault() throws Exception {
+        SoapResponseReader.Result result = SoapResponseReader.read(stream(envelope(SOAP_12,
+                "<soap:Fault><soap:Code><soap:Value>soap:Receiver</soap:Value></soap:Code>"
+                        + "<soap:Reason><soap:Text xml:lang=\"fr\">Service indisponible</soap:Text></soap:Reason>"
+                        + "</soap:Fault>")), null);
+
+        assertEquals("Service indisponible", result.fault());
+    }
+
+    @Test
+    void decodesXmlContentIntoTarget() throws Exception {
+        // Base64 découpé en lignes, comme le renvoient certains serveurs
+        String base64 = Base64.getMimeEncoder(8, "\r\n".getBytes(StandardCharsets.US_ASCII))
+                .encodeToString(INVOICE.getBytes(StandardCharsets.UTF_8));
+        Path target = tempDir.resolve("copie.xml");
+
+        SoapResponseReader.Result result = SoapResponseReader.read(stream(envelope(SOAP_11,
+                "<return><efact><documentNumber>F1</documentNumber><xmlContent>" + base64
+                        + "</xmlContent></efact></return>")), target);
+
+        assertTrue(result.hasContent());
+        assertEquals(INVOICE, Files.readString(target, StandardCharsets.UTF_8));
+        // Le Base64 ne se retrouve pas dans le statut
+        assertEquals("F1", result.status());
+    }
+
+    @Test
+    void emptyXmlContentIsNotContent() throws Exception {
+        Path target = tempDir.resolve("copie.xml");
+
+        SoapResponseReader.Result result = SoapResponseReader.read(stream(envelope(SOAP_11,
+                "<return><xmlContent></xmlContent></return>")), target);
+
+        assertFalse(result.hasContent());
+    }
+
+    @Test
+    void readsEveryEfactOfAPage() throws Exception {
+        String body = "<return>"
+                + efact("F1", "TTN1", INVOICE)
+                + efact("F2", "TTN2", "<TEIF/>")
+                // Sans numéro de document: ignorée, son fichier de travail supprimé
+                + "<efact><xmlContent>" + base64("<orpheline/>") + "</xmlContent></efact>"
+                + "</return>";
+        List<TtnEfact> efacts = new ArrayList<>();
+
+        int count = SoapResponseReader.readEfacts(stream(envelope(SOAP_11, body)), scratch(), efacts::add);
+
+        assertEquals(2, count);
+        assertEquals("F1", efacts.get(0).documentNumber());
+        assertEquals("TTN1", efacts.get(0).idSaveEfact());
+        assertEquals(INVOICE, Files.readString(efacts.get(0).xmlFile(), StandardCharsets.UTF_8));
+        assertEquals("F2", efacts.get(1).documentNumber());
+        assertEquals("<TEIF/>", Files.readString(efacts.get(1).xmlFile(), StandardCharsets.UTF_8));
+        assertEquals(2, scratchFiles());
+    }
+
+    @Test
+    void truncatedPageLeavesNoScratchFile() throws Exception {
+        String response = envelope(SOAP_11, "<return>" + efact("F1", "TTN1", INVOICE)
+                + "<efact><xmlContent>" + base64(INVOICE) + "</xmlContent>");
+        String truncated = response.substring(0, response.indexOf("</soap:Body>"));
+        List<TtnEfact> efacts = new ArrayList<>();
+
+        assertThrows(XMLStreamException.class,
+                () -> SoapResponseReader.readEfacts(stream(truncated), scratch(), efacts::add));
+
+        // F1 complète a été transmise; le contenu de la facture inachevée est supprimé
+        assertEquals(1, efacts.size());
+        assertEquals(1, scratchFiles());
+    }
+
+    private Supplier<Path> scratch() {
+        AtomicInteger next = new AtomicInteger();
+        return () -> tempDir.resolve("efact-" + next.incrementAndGet() + ".xml");
+    }
+
+    private long scratchFiles() throws Exception {
+        try (var files = Files.list(tempDir)) {
+            return files.count();
+        }
+    }
+
+    private static String efact(String documentNumber, String idSaveEfact, String xml) {
+        return "<efact><documentNumber>" + documentNumber + "</documentNumber>"
+                + "<idSaveEfact>" + idSaveEfact + "</idSaveEfact>"
+                + "<xmlContent>" + base64(xml) + "</xmlContent></efact>";
+    }
+
+    private static String base64(String xml) {
+        return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String envelope(String namespace, String body) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><soap:Envelope xmlns:soap=\"" + namespace + "\">"
+                + "<soap:Body>" + body + "</soap:Body></soap:Envelope>";
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
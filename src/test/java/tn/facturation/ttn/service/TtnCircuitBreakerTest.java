@@ -0,0 +1,134 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import tn.facturation.ttn.config.AppProperties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Transitions du disjoncteur TTN.
+ */
+class TtnCircuitBreakerTest {
+
+    private static TtnCircuitBreaker breaker(int failureThreshold, long openDurationMs, int halfOpenProbes) {
+        AppProperties config = new AppProperties();
+        AppProperties.CircuitBreaker settings = config.getTtn().getCircuitBreaker();
+        settings.setFailureThreshold(failureThreshold);
+        settings.setOpenDurationMs(openDurationMs);
+        settings.setHalfOpenProbes(halfOpenProbes);
+        return new TtnCircuitBreaker(config, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        TtnCircuitBreaker breaker = breaker(3, 60_000, 1);
+
+        breaker.tryAcquire().failure();
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+        assertFalse(breaker.allowsTraffic());
+    }
+
+    @Test
+    void successResetsFailureCount() {
+        TtnCircuitBreaker breaker = breaker(2, 60_000, 1);
+
+        breaker.tryAcquire().failure();
+        breaker.tryAcquire().success();
+        breaker.tryAcquire().failure();
+
+        assertEquals(TtnCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    void lateSuccessDoesNotCloseOpenBreaker() {
+        TtnCircuitBreaker breaker = breaker(1, 60_000, 1);
+        TtnCircuitBreaker.Call slow = breaker.tryAcquire();
+
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.OPEN, breaker.getState());
+
+        slow.success();
+        assertEquals(TtnCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void halfOpenClosesOnlyAfterAllProbesSucceed() {
+        TtnCircuitBreaker breaker = breaker(1, 0, 2);
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        TtnCircuitBreaker.Call first = breaker.tryAcquire();
+        TtnCircuitBreaker.Call second = breaker.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(breaker.tryAcquire());
+
+        first.success();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+
+        second.success();
+        assertEquals(TtnCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void halfOpenProbeFailureReopens() {
+        AppProperties config = new AppProperties();
+        AppProperties.CircuitBreaker settings = config.getTtn().getCircuitBreaker();
+        settings.setFailureThreshold(1);
+        settings.setOpenDurationMs(0);
+        TtnCircuitBreaker breaker = new TtnCircuitBreaker(config, new SimpleMeterRegistry());
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // Réouverture pour de bon: plus de passage en semi-ouvert pendant le test
+        settings.setOpenDurationMs(60_000);
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+    }
+
+    @Test
+    void ignoredProbeFreesItsSlotWithoutClosing() {
+        TtnCircuitBreaker breaker = breaker(1, 0, 1);
+        breaker.tryAcquire().failure();
+
+        TtnCircuitBreaker.Call probe = breaker.tryAcquire();
+        assertNull(breaker.tryAcquire());
+
+        probe.ignore();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNotNull(breaker.tryAcquire());
+    }
+
+    @Test
+    void verdictFromBeforeHalfOpenIsIgnored() {
+        TtnCircuitBreaker breaker = breaker(1, 0, 1);
+        TtnCircuitBreaker.Call started = breaker.tryAcquire();
+        breaker.tryAcquire().failure();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        started.success();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        started.failure();
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    void verdictIsCountedOnce() {
+        TtnCircuitBreaker breaker = breaker(2, 60_000, 1);
+        TtnCircuitBreaker.Call call = breaker.tryAcquire();
+
+        call.failure();
+        call.failure();
+        assertEquals(TtnCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getConsecutiveFailures());
+    }
+}
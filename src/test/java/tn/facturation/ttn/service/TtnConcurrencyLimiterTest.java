@@ -0,0 +1,130 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Limite adaptative (AIMD) des appels TTN simultanés.
+ */
+class TtnConcurrencyLimiterTest {
+
+    private static TtnConcurrencyLimiter limiter(int initial, int min, int max, double backoffRatio) {
+        // Tolérance large: la latence mesurée ne bloque pas la croissance
+        return limiter(initial, min, max, backoffRatio, 1e9);
+    }
+
+    private static TtnConcurrencyLimiter limiter(int initial, int min, int max, double backoffRatio,
+                                                 double latencyTolerance) {
+        AppProperties config = new AppProperties();
+        AppProperties.Limiter settings = config.getTtn().getLimiter();
+        settings.setInitialLimit(initial);
+        settings.setMinLimit(min);
+        settings.setMaxLimit(max);
+        settings.setBackoffRatio(backoffRatio);
+        settings.setLatencyTolerance(latencyTolerance);
+        return new TtnConcurrencyLimiter(config, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void acquireReturnsNullWhenLimitIsReached() throws Exception {
+        TtnConcurrencyLimiter limiter = limiter(2, 1, 2, 0.5);
+
+        assertNotNull(limiter.acquire(0));
+        assertNotNull(limiter.acquire(0));
+        assertNull(limiter.acquire(10));
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1L, limiter.snapshot().get("rejections"));
+    }
+
+    @Test
+    void releaseWakesWaitingCaller() throws Exception {
+        TtnConcurrencyLimiter limiter = limiter(1, 1, 1, 0.5);
+        TtnConcurrencyLimiter.Permit held = limiter.acquire(0);
+
+        CompletableFuture<TtnConcurrencyLimiter.Permit> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire(5000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        held.success();
+
+        assertNotNull(waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    void successGrowsLimitOnlyWhenItIsUsed() throws Exception {
+        TtnConcurrencyLimiter limiter = limiter(4, 1, 32, 0.5);
+
+        // Une seule place utilisée sur quatre: la limite ne bouge pas
+        limiter.acquire(0).success();
+        assertEquals(4.0, limiter.getLimit());
+
+        TtnConcurrencyLimiter.Permit[] permits = new TtnConcurrencyLimiter.Permit[4];
+        for (int i = 0; i < permits.length; i++) {
+            permits[i] = limiter.acquire(0);
+        }
+        permits[0].success();
+        assertEquals(4.25, limiter.getLimit(), 1e-9);
+        for (int i = 1; i < permits.length; i++) {
+            permits[i].success();
+        }
+        assertTrue(limiter.getLimit() < 5);
+    }
+
+    @Test
+    void slowResponseDoesNotGrowLimit() throws Exception {
+        TtnConcurrencyLimiter limiter = limiter(2, 1, 32, 0.5, 2.0);
+        TtnConcurrencyLimiter.Permit first = limiter.acquire(0);
+        TtnConcurrencyLimiter.Permit held = limiter.acquire(0);
+
+        // Premier échantillon: latence de référence quasi nulle
+        first.success();
+        double limit = limiter.getLimit();
+
+        TtnConcurrencyLimiter.Permit slow = limiter.acquire(0);
+        Thread.sleep(20);
+        slow.success();
+        assertEquals(limit, limiter.getLimit());
+        held.ignore();
+    }
+
+    @Test
+    void droppedCallShrinksLimitDownToMinimum() throws Exception {
+        TtnConcurrencyLimiter limiter = limiter(10, 3, 32, 0.5);
+
+        limiter.acquire(0).dropped();
+        assertEquals(5.0, limiter.getLimit());
+
+        limiter.acquire(0).dropped();
+        assertEquals(3.0, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void ignoredCallReleasesOnceWithoutChangingLimit() throws Exception {
+        TtnConcurrencyLimiter limiter = limiter(2, 1, 32, 0.5);
+        TtnConcurrencyLimiter.Permit permit = limiter.acquire(0);
+
+        permit.ignore();
+        permit.success();
+        permit.dropped();
+
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(2.0, limiter.getLimit());
+    }
+
+    @Test
+    void initialLimitIsClampedToBounds() {
+        assertEquals(8.0, limiter(50, 1, 8, 0.5).getLimit());
+        assertEquals(2.0, limiter(0, 2, 8, 0.5).getLimit());
+    }
+}
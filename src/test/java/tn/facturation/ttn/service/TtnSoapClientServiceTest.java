@@ -0,0 +1,90 @@
+package tn.facturation.ttn.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import tn.facturation.ttn.config.AppProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ordre des garde-fous d'un appel TTN: disjoncteur, puis limite adaptative.
+ */
+class TtnSoapClientServiceTest {
+
+    private static final byte[] SIGNED_XML = "<TEIF/>".getBytes(StandardCharsets.UTF_8);
+
+    private final AppProperties config = new AppProperties();
+    private TtnHttpTransport transport;
+
+    private TtnSoapClientService client(TtnCircuitBreaker breaker, TtnConcurrencyLimiter limiter) {
+        config.getTtn().setEndpoint("http://127.0.0.1:9/ElfatouraServices/EfactService");
+        transport = new TtnHttpTransport(config);
+        return new TtnSoapClientService(config, breaker, transport,
+                new SoapEnvelopeTemplates("login", "p&ss", "0000000A"), limiter);
+    }
+
+    @AfterEach
+    void stop() {
+        if (transport != null) {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    void openBreakerRejectsWithoutWaitingForLimiter() throws Exception {
+        config.getTtn().setConnectionTimeoutMs(5000);
+        TtnCircuitBreaker breaker = breaker(60_000);
+        TtnConcurrencyLimiter limiter = saturatedLimiter();
+        breaker.tryAcquire().failure();
+
+        long start = System.nanoTime();
+        Throwable error = failure(client(breaker, limiter).saveEfactAsync(SIGNED_XML, "F1"));
+
+        assertInstanceOf(TtnCircuitOpenException.class, error);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    void limiterRefusalGivesProbeSlotBack() throws Exception {
+        config.getTtn().setConnectionTimeoutMs(20);
+        TtnCircuitBreaker breaker = breaker(1);
+        TtnConcurrencyLimiter limiter = saturatedLimiter();
+        breaker.tryAcquire().failure();
+        Thread.sleep(10);
+        assertEquals(TtnCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        Throwable error = failure(client(breaker, limiter).saveEfactAsync(SIGNED_XML, "F1"));
+
+        assertEquals("Limite d'appels TTN simultanés atteinte", error.getMessage());
+        // L'unique place d'appel de test est de nouveau libre
+        assertNotNull(breaker.tryAcquire());
+    }
+
+    private TtnCircuitBreaker breaker(long openDurationMs) {
+        AppProperties.CircuitBreaker settings = config.getTtn().getCircuitBreaker();
+        settings.setFailureThreshold(1);
+        settings.setOpenDurationMs(openDurationMs);
+        settings.setHalfOpenProbes(1);
+        return new TtnCircuitBreaker(config, new SimpleMeterRegistry());
+    }
+
+    private TtnConcurrencyLimiter saturatedLimiter() throws InterruptedException {
+        AppProperties.Limiter settings = config.getTtn().getLimiter();
+        settings.setInitialLimit(1);
+        settings.setMaxLimit(1);
+        TtnConcurrencyLimiter limiter = new TtnConcurrencyLimiter(config, new SimpleMeterRegistry());
+        assertNotNull(limiter.acquire(0));
+        return limiter;
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws Exception {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+}
@@ -16,7 +16,8 @@ echo Build termine avec succes!
 echo Demarrage du service...
 echo.
 
-set JAVA_OPTS=-Xms512m -Xmx1024m -Dfile.encoding=UTF-8
+rem Connexions keep-alive vers TTN (HttpClient du JDK, reglage global a la JVM)
+set JAVA_OPTS=-Xms512m -Xmx1024m -Dfile.encoding=UTF-8 -Djdk.httpclient.connectionPoolSize=20 -Djdk.httpclient.keepalive.timeout=60
 
 java %JAVA_OPTS% -jar target\ttn-elfatoora-service-1.0.0.jar
 